@@ -0,0 +1,186 @@
+/*
+This utility class turns numbers into CSV text for the Datalogger and
+W_Datalogger_v05 classes, without creating any String objects.
+
+The Java methods String.format() and DecimalFormat build a Formatter,
+box the value and return a new String for every number. At 50-200 rows per
+second that garbage adds up on the Control Hub's small heap. These methods
+instead append digits straight into a reusable StringBuilder, which keeps
+its character array between lines.
+
+The text is the same as before:
+  appendFixed(out, val, 3)     same as String.format("%.3f", val)
+  appendHexByte(out, b)        same as String.format("0x%x", b)
+  appendSeconds(out, ms, 3)    same as new DecimalFormat("000.000").format(ms / 1000f)
+
+A decimal point is always written as '.', whatever the device locale.
+
+Most users will not need to edit or call this class directly.
+
+*/
+
+package org.firstinspires.ftc.teamcode;
+
+import java.util.Locale;
+
+public final class CsvNumberEncoder
+{
+    private static final long[] POW10 = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+    public static final int MAX_DECIMALS = POW10.length - 1;
+
+    // Used only for values the fast path can't round exactly; see appendFixed().
+    private static final String[] FIXED_FORMATS = new String[POW10.length];
+    static
+    {
+        for (int i = 0; i < FIXED_FORMATS.length; i++)
+        {
+            FIXED_FORMATS[i] = "%." + i + "f";
+        }
+    }
+
+    // Above this the scaled value no longer has fractional precision.
+    private static final double MAX_FAST_SCALED = 1e15;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private CsvNumberEncoder() {}
+
+    /*
+     * Appends val with a fixed number of decimal places, rounding half up
+     * exactly like String.format("%.Nf", val).
+     */
+    public static void appendFixed(StringBuilder out, double val, int decimals)
+    {
+        if (decimals < 0 || decimals > MAX_DECIMALS)
+        {
+            throw new IllegalArgumentException("Decimals must be between 0 and " + MAX_DECIMALS);
+        }
+        if (Double.isNaN(val))
+        {
+            out.append("NaN");
+            return;
+        }
+        if (Double.isInfinite(val))
+        {
+            out.append(val > 0 ? "Infinity" : "-Infinity");
+            return;
+        }
+
+        // String.format keeps the sign of negative zero and of values that round to zero.
+        boolean negative = val < 0 || (val == 0 && 1 / val < 0);
+        double abs = Math.abs(val);
+        double scaled = abs * POW10[decimals];
+
+        if (scaled < MAX_FAST_SCALED)
+        {
+            double whole = Math.floor(scaled);
+            double frac = scaled - whole;
+            long units = (long) whole;
+
+            // String.format rounds the shortest decimal form of val, which is within
+            // about one ulp of `scaled`. Away from a .5 tie both round the same way.
+            if (Math.abs(frac - 0.5) > 2 * Math.ulp(scaled))
+            {
+                if (frac > 0.5) units++;
+                appendUnits(out, negative, units, decimals);
+                return;
+            }
+
+            // An exact tie (e.g. 23.0625 to 3 places) rounds up.
+            if (frac == 0.5 && isExactProduct(abs, decimals))
+            {
+                appendUnits(out, negative, units + 1, decimals);
+                return;
+            }
+        }
+
+        // Near-ties and very large values are rare; let the Formatter decide.
+        out.append(String.format(Locale.US, FIXED_FORMATS[decimals], val));
+    }
+
+    /*
+     * Same text as String.format("%.Nf", val) for a float, which the Formatter
+     * widens to double first.
+     */
+    public static void appendFixed(StringBuilder out, float val, int decimals)
+    {
+        appendFixed(out, (double) val, decimals);
+    }
+
+    public static void appendLong(StringBuilder out, long val)
+    {
+        // StringBuilder.append(long) writes the digits in place.
+        out.append(val);
+    }
+
+    public static void appendInt(StringBuilder out, int val)
+    {
+        out.append(val);
+    }
+
+    // Same text as String.format("0x%x", val); negative bytes print as two hex digits.
+    public static void appendHexByte(StringBuilder out, byte val)
+    {
+        int unsigned = val & 0xff;
+        out.append('0').append('x');
+        if (unsigned >= 0x10)
+        {
+            out.append(HEX_DIGITS[unsigned >> 4]);
+        }
+        out.append(HEX_DIGITS[unsigned & 0xf]);
+    }
+
+    /*
+     * Appends a millisecond count as seconds with three decimals, zero-padding
+     * the whole seconds to at least minIntegerDigits, like DecimalFormat("000.000").
+     */
+    public static void appendSeconds(StringBuilder out, long millis, int minIntegerDigits)
+    {
+        if (millis < 0)
+        {
+            out.append('-');
+            millis = -millis;
+        }
+        appendPadded(out, millis / 1000, minIntegerDigits);
+        out.append('.');
+        appendPadded(out, millis % 1000, 3);
+    }
+
+    private static void appendUnits(StringBuilder out, boolean negative, long units, int decimals)
+    {
+        if (negative) out.append('-');
+        if (decimals == 0)
+        {
+            out.append(units);
+            return;
+        }
+        long pow = POW10[decimals];
+        out.append(units / pow);
+        out.append('.');
+        appendPadded(out, units % pow, decimals);
+    }
+
+    private static void appendPadded(StringBuilder out, long val, int minDigits)
+    {
+        for (int i = minDigits - 1; i > 0 && val < POW10[Math.min(i, MAX_DECIMALS)]; i--)
+        {
+            out.append('0');
+        }
+        out.append(val);
+    }
+
+    /*
+     * True when abs * 10^decimals was computed without rounding, i.e. the
+     * significand of abs and 5^decimals fit together in 53 bits.
+     */
+    private static boolean isExactProduct(double abs, int decimals)
+    {
+        long bits = Double.doubleToRawLongBits(abs);
+        long significand = (bits & 0x000fffffffffffffL) | 0x0010000000000000L;
+        int significantBits = 53 - Long.numberOfTrailingZeros(significand);
+        int fiveBits = 64 - Long.numberOfLeadingZeros(POW10[decimals] >> decimals);
+        return significantBits + fiveBits <= 53;
+    }
+}
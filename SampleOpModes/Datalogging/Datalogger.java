@@ -10,12 +10,89 @@ For instructions, see the tutorial at the FTC Wiki:
 https://github.com/FIRST-Tech-Challenge/FtcRobotController/wiki/Datalogging
 
 
-Android Studio programmers can change the destination filepath at Line 295,
-From: "/sdcard/FIRST/java/src/Datalogs/%s.txt"
-To:   "/sdcard/FIRST/Datalogs/%s.csv"
+Android Studio programmers can change the destination folder and extension
+in DEFAULT_DIRECTORY and FILE_EXTENSION (or call Builder.setDirectory()),
+From: "/sdcard/FIRST/java/src/Datalogs" and ".txt"
+To:   "/sdcard/FIRST/Datalogs" and ".csv"
 This change presumes OnBot Java will not be used to preview or download datalogs;
 they will instead be manually transferred from the RC device.
 
+Numbers are turned into text by CsvNumberEncoder.java, which must be
+copied alongside this class.
+
+Builder.setRotation() splits a long session into numbered segment files
+(e.g. datalog_01_000.txt, datalog_01_001.txt) instead of overwriting one
+file. Closed segments can be gzipped in the background, and the oldest are
+deleted once a total size cap is reached.
+
+For long logs, Builder.setIndex() also writes a small "<log file>.idx"
+sidecar: where each block of rows starts, its time span, and the range of
+each numeric column. tools/DatalogIndex.java uses it to pull out e.g. the
+seconds around t=97s, or only the rows where a current exceeds a limit,
+without reading the whole file.
+
+By default the log is only guaranteed to be on the storage device when the
+OpMode stops. Builder.setSyncPolicy() forces it to storage every few
+milliseconds or lines, so a brownout or crash mid-match loses only the
+last moments.
+
+To log only when something happens, Builder.setWriteOnChange() skips lines
+until a chosen field changes by more than a deadband, optionally with a
+heartbeat line every few seconds (Builder.setHeartbeatPeriod()).
+
+Columns can be declared by name in a Datalogger.Schema and looked up later
+with schema.get("Name"). Builder.setEventColumn() adds an Event column;
+logEvent("text") then writes a line holding only the timestamp and that
+text, between the regular lines, without disturbing the sampled fields.
+
+Fields set on other threads (an IMU polling thread, a vision callback) are
+logged through a Producer from newProducer(), which has its own buffer.
+The background writer merges every thread's lines into timestamp order.
+Several logs open at once (drive, vision, arm) can share one writer thread
+with Builder.setSharedWriter(), so they take turns at the SD card and
+force their data to it together.
+
+When a slow SD card lets the async buffer fill up, Builder.setBackpressure()
+chooses what gives: the newest lines (the default), the oldest lines, the
+logging rate (ADAPTIVE_DECIMATE keeps every 2nd, 4th, ... line until the
+backlog clears), or the OpMode loop itself (BLOCK). With an event column,
+each gap is marked by a "Backpressure: ..." line so an analysis can allow
+for it.
+
+Data that arrives in bursts, such as a buffered IMU FIFO or all the tag
+detections in one camera frame, can be logged many lines at a time from
+plain arrays through a Batch from newBatch(), instead of a set() and
+writeLine() per sample.
+
+Builder.setFlightRecorder() keeps the last few seconds of lines in memory
+and writes them to the file only when something happens: trigger(), an
+exception that would crash the app, or the end of the OpMode. Like an
+oscilloscope, it also keeps recording for a set time after the trigger.
+
+getMetrics() reports how the logger itself is doing: writeLine() time
+(median, 99th percentile, worst), lines and bytes written, time spent
+forcing data to storage, and dropped lines. Show it on telemetry to tell
+a slow loop from a slow logger.
+
+Builder.setLiveStream() also sends every line, as CSV, over TCP or UDP to
+a laptop on the robot's network while the OpMode runs. Receive it with
+tools/DatalogStreamClient.java, which can save it and plot it live. If the
+network can't keep up, lines are left out of the stream, never delayed,
+and the file still gets them all.
+
+For long logs, Builder.setFormat(Format.BINARY) writes a compact binary
+.dlog file instead of CSV text. Use typed fields (DoubleField etc.) for
+numbers in binary logs. Convert the file on a computer with
+tools/DatalogToCsv.java, which recreates the same CSV text.
+Format.COMPRESSED packs the same .dlog rows in blocks, column by column,
+storing each value as its change from the previous one: a slowly changing
+sensor or a steady timestamp then takes a few bits per line. It converts
+the same way, but can't be combined with setIndex().
+tools/DatalogStats.java summarizes logs of any length, in either format:
+per-column statistics, loop-time jitter and gaps.
+tools/DatalogDownsample.java thins one to a few thousand lines for charting,
+keeping the spikes that plotting every n-th line would hide.
+
 Credit to @Windwoes (https://github.com/Windwoes).
 
 */
@@ -29,16 +106,89 @@ import com.qualcomm.robotcore.eventloop.opmode.OpModeManagerNotifier;
 import org.firstinspires.ftc.robotcore.internal.opmode.OpModeManagerImpl;
 import org.firstinspires.ftc.robotcore.internal.system.AppUtil;
 
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.DecimalFormat;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 public class Datalogger
 {
+    private static final String DEFAULT_DIRECTORY = "/sdcard/FIRST/java/src/Datalogs";
+    private static final String FILE_EXTENSION = ".txt";
+    private static final String BINARY_FILE_EXTENSION = ".dlog";
+    private static final String INDEX_EXTENSION = ".idx";
+
     private LoggableField[] fields;
-    private BufferedCsvWriter bufferedCsvWriter;
+    private LogWriter logWriter;
+
+    // ColumnPlan code per column, for capturing typed fields inline.
+    private final int[] plan;
+
+    // Scratch row for synchronous logging; unused when asyncWriter is active.
+    private final Row syncRow;
+
+    // Background writer thread, or null when writeLine() does its own I/O.
+    private final AsyncWriter asyncWriter;
+    private final Backpressure backpressure;
+
+    // Per-field sample rates, or null when every field is logged on every line.
+    private final Sampler sampler;
+
+    // Skips lines whose trigger fields have not changed, or null to write every line.
+    private final ChangeFilter changeFilter;
+
+    // Forces written lines to storage periodically, or null to sync only on close.
+    private final SyncPolicy syncPolicy;
+
+    // In-memory recorder that only writes around a trigger(), or null.
+    private final FlightRecorder flightRecorder;
+    private final CrashHandler crashHandler;
+
+    // Network sender for Builder.setLiveStream(), or null.
+    private final LiveStream liveStream;
+
+    // Self-instrumentation; see getMetrics().
+    private final LatencyHistogram writeLineLatency = new LatencyHistogram();
+    private final WriterStats writerStats;
+    private final boolean metricsOnClose;
+
+    // Columns set by a Producer thread, which writeLine() leaves empty.
+    private final boolean[] producerOwned;
+
+    // Index of the event column, or -1 if Builder.setEventColumn() was not used.
+    private final int eventColumn;
+
+    // Index of the "Write us" column, or -1; stamped as each row is written.
+    private final int writeTimeColumn;
+    private boolean closed;
 
     /*
      * NOTE: We cannot simply pass `new OpModeNotifications()` inline to the call
@@ -48,14 +198,131 @@ public class Datalogger
      */
     private OpModeNotifications opModeNotifications = new OpModeNotifications();
 
-    private Datalogger(BufferedCsvWriter bufferedCsvWriter, LoggableField[] fields)
+    private Datalogger(LogWriter logWriter, WriterStats writerStats, LoggableField[] fields, int asyncCapacity, boolean sharedWriter,
+                       Backpressure backpressure, long mergeDelayNs, Sampler sampler, ChangeFilter changeFilter,
+                       SyncPolicy syncPolicy, boolean metricsOnClose)
     {
-        this.bufferedCsvWriter = bufferedCsvWriter;
+        this.writerStats = writerStats;
+        this.metricsOnClose = metricsOnClose;
+        this.syncPolicy = syncPolicy;
+        this.logWriter = logWriter;
         this.fields = fields;
+        this.plan = ColumnPlan.of(fields);
+        this.producerOwned = new boolean[fields.length];
+        this.sampler = sampler;
+        this.changeFilter = changeFilter;
+        this.backpressure = backpressure;
+
+        int event = -1;
+        int writeTime = -1;
+        for (int i = 0; i < fields.length; i++)
+        {
+            fields[i].column = i;
+            if (fields[i] instanceof EventField) event = i;
+            if (fields[i] instanceof WriteMicrosField) writeTime = i;
+        }
+        eventColumn = event;
+        writeTimeColumn = writeTime;
 
         OpModeManagerImpl.getOpModeManagerOfActivity(AppUtil.getInstance().getActivity()).registerListener(opModeNotifications);
 
         writeHeader();
+        writerStats.headerWritten(logWriter.position());
+
+        LogWriter fileWriter = logWriter;
+        if (logWriter instanceof LiveStreamLogWriter)
+        {
+            liveStream = ((LiveStreamLogWriter) logWriter).stream;
+            fileWriter = ((LiveStreamLogWriter) logWriter).file;
+        }
+        else
+        {
+            liveStream = null;
+        }
+
+        if (fileWriter instanceof FlightRecorder)
+        {
+            flightRecorder = (FlightRecorder) fileWriter;
+            crashHandler = new CrashHandler();
+            crashHandler.install();
+        }
+        else
+        {
+            flightRecorder = null;
+            crashHandler = null;
+        }
+
+        if (asyncCapacity > 0)
+        {
+            syncRow = null;
+            asyncWriter = new AsyncWriter(asyncCapacity, mergeDelayNs, sharedWriter);
+            asyncWriter.start();
+        }
+        else
+        {
+            syncRow = new Row(fields.length);
+            asyncWriter = null;
+        }
+    }
+
+    /*
+     * In flight-recorder mode, an exception that would crash the app (e.g.
+     * in a sensor thread) first writes out the recorded rows. Exceptions in
+     * the OpMode itself are caught by the SDK, which then stops the OpMode,
+     * so onOpModePostStop writes them out instead.
+     *
+     * Several recorders chain their handlers. Once its log has closed a
+     * handler is inert and only passes exceptions on; it takes itself out
+     * of the chain only while it is still the default handler, so a log
+     * closing out of order never removes or restores another's.
+     */
+    private class CrashHandler implements Thread.UncaughtExceptionHandler
+    {
+        private Thread.UncaughtExceptionHandler previous;
+        private volatile boolean inert;
+
+        void install()
+        {
+            synchronized (CrashHandler.class)
+            {
+                previous = Thread.getDefaultUncaughtExceptionHandler();
+                Thread.setDefaultUncaughtExceptionHandler(this);
+            }
+        }
+
+        void uninstall()
+        {
+            synchronized (CrashHandler.class)
+            {
+                inert = true;
+                if (Thread.getDefaultUncaughtExceptionHandler() != this) return;
+
+                // Skip handlers of logs that closed while this one was installed after them.
+                Thread.UncaughtExceptionHandler restore = previous;
+                while (restore instanceof CrashHandler && ((CrashHandler) restore).inert)
+                {
+                    restore = ((CrashHandler) restore).previous;
+                }
+                Thread.setDefaultUncaughtExceptionHandler(restore);
+            }
+        }
+
+        @Override
+        public void uncaughtException(Thread thread, Throwable e)
+        {
+            try
+            {
+                if (!inert)
+                {
+                    flightRecorder.trigger(System.nanoTime());
+                    close();
+                }
+            }
+            finally
+            {
+                if (previous != null) previous.uncaughtException(thread, e);
+            }
+        }
     }
 
     private class OpModeNotifications implements OpModeManagerNotifier.Notifications
@@ -76,20 +343,9 @@ public class Datalogger
 
     private void writeHeader()
     {
-        StringBuilder stringBuilder = new StringBuilder();
-
-        for (int i = 0; i < fields.length; i++)
-        {
-            stringBuilder.append(fields[i].name);
-            if (i < fields.length-1)
-            {
-                stringBuilder.append(",");
-            }
-        }
-
         try
         {
-            bufferedCsvWriter.writeLine(stringBuilder.toString());
+            logWriter.writeHeader(fields);
         }
         catch (IOException e)
         {
@@ -100,235 +356,5511 @@ public class Datalogger
 
     public void writeLine()
     {
-        StringBuilder stringBuilder = new StringBuilder();
-
-        for (int i = 0; i < fields.length; i++)
+        long now = System.nanoTime();
+        if (changeFilter == null || changeFilter.shouldWrite(fields, now))
         {
-            fields[i].writeToBuffer(stringBuilder);
-            if (i < fields.length-1)
+            Row row = claimRow(false);
+            if (row != null)
             {
-                stringBuilder.append(",");
+                if (changeFilter != null) changeFilter.markWritten(fields, now);
+                captureFields(row, now);
+                commitRow(row);
             }
         }
+        writeLineLatency.record(System.nanoTime() - now);
+    }
 
-        try
+    /*
+     * Writes an "event overlay" line: the timestamp plus this text in the
+     * event column, with every other cell empty. Use it to mark moments such
+     * as "AUTO_START" or "ARM_STALL" among the regular lines. Requires
+     * Builder.setEventColumn().
+     */
+    public void logEvent(String event)
+    {
+        if (eventColumn < 0) throw new RuntimeException("Events require Builder.setEventColumn()!");
+
+        Row row = claimRow(true);
+        if (row != null)
         {
-            bufferedCsvWriter.writeLine(stringBuilder.toString());
+            captureEvent(row, event, System.nanoTime());
+            commitRow(row);
         }
-        catch (IOException e)
+    }
+
+    // Returns the row to fill for the next line, or null if it must be dropped.
+    private Row claimRow(boolean event)
+    {
+        if (asyncWriter == null) return syncRow;
+
+        if (asyncWriter.error != null)
         {
-            e.printStackTrace();
-            throw new RuntimeException("Error writing datalog line");
+            throw new RuntimeException("Error writing datalog line", asyncWriter.error);
         }
+        // Only copy the values here; the writer thread does the formatting and I/O.
+        return event ? asyncWriter.mainRing.claimEvent() : asyncWriter.mainRing.claim();
     }
 
-    private void close()
+    private void commitRow(Row row)
     {
+        if (asyncWriter != null)
+        {
+            asyncWriter.mainRing.publish();
+            return;
+        }
+
         try
         {
-            bufferedCsvWriter.close();
+            if (crashHandler == null)
+            {
+                writeRow(row);
+                syncIfDue();
+                return;
+            }
+            // The crash handler may dump and close the recorder from another thread.
+            synchronized (this)
+            {
+                if (closed) return;
+                writeRow(row);
+                syncIfDue();
+            }
         }
         catch (IOException e)
         {
             e.printStackTrace();
+            throw new RuntimeException("Error writing datalog line");
         }
     }
 
-    public static abstract class LoggableField
+    /*
+     * Returns the number of rows that were discarded because the async
+     * buffer (or a Producer's buffer) was full: the newest rows, or the
+     * oldest with Backpressure.DROP_OLDEST. Always 0 when logging
+     * synchronously.
+     */
+    public long getDroppedRows()
     {
-        protected final String name;
-
-        public LoggableField(String name)
-        {
-            this.name = name;
-        }
-
-        public abstract void writeToBuffer(StringBuilder out);
+        return asyncWriter == null ? 0 : asyncWriter.droppedRows();
     }
 
-    public static class GenericField extends LoggableField
+    // Returns the number of lines left out by Backpressure.ADAPTIVE_DECIMATE.
+    public long getDecimatedRows()
     {
-        private String str = "";
-        private static final String STR_FALSE = "false";
-        private static final String STR_TRUE = "true";
-
-        public GenericField(String name)
-        {
-            super(name);
-        }
+        return asyncWriter == null ? 0 : asyncWriter.decimatedRows();
+    }
 
-        @Override
-        public void writeToBuffer(StringBuilder out)
-        {
-            out.append(str);
-        }
+    /*
+     * Creates a Producer for fields that are set on another thread. Its
+     * lines go through their own ring of `capacity` rows, so that thread
+     * never shares a buffer or a lock with the OpMode, and the writer thread
+     * merges all lines into timestamp order (see Builder.setMergeDelay()).
+     *
+     * Call this from the OpMode thread before starting the other thread.
+     * The fields must be columns of this log; from then on writeLine() on
+     * the OpMode thread leaves them empty. Requires Builder.setAsync().
+     */
+    public Producer newProducer(int capacity, LoggableField... producerFields)
+    {
+        if (asyncWriter == null) throw new RuntimeException("Producers require Builder.setAsync()!");
+        if (capacity < 1) throw new RuntimeException("Producer capacity must be at least 1!");
 
-        public void set(String string)
+        boolean[] captured = new boolean[fields.length];
+        for (int i = 0; i < fields.length; i++)
         {
-            str = string;
+            captured[i] = fields[i] instanceof TimestampField;
         }
-
-        public void set(String format, Object... args)
+        for (LoggableField field : producerFields)
         {
-            str = String.format(format, args);
+            int c = field.column;
+            if (c < 0 || fields[c] != field) throw new RuntimeException("Producer field " + field.name + " is not in setFields()!");
+            if (c == eventColumn) throw new RuntimeException("The event column cannot belong to a producer!");
+            if (producerOwned[c]) throw new RuntimeException("Field " + field.name + " already belongs to a producer!");
+            if (changeFilter != null && changeFilter.isTrigger(c)) throw new RuntimeException("A change trigger cannot belong to a producer!");
+            captured[c] = true;
         }
-
-        public void set(int val)
+        for (LoggableField field : producerFields)
         {
-            str = Integer.toString(val);
+            producerOwned[field.column] = true;
         }
 
-        public void set(boolean val)
-        {
-            str = val ? STR_TRUE : STR_FALSE;
-        }
+        if (asyncWriter.shared) SharedWriter.reserve(asyncWriter, RowRing.bytes(capacity, fields.length));
+        RowRing ring = new RowRing(capacity, fields.length, backpressure);
+        asyncWriter.addRing(ring);
+        return new Producer(ring, captured);
+    }
 
-        public void set(byte val)
-        {
-            str = String.format("0x%x", val);
-        }
+    /*
+     * Limits the memory that the async buffers of all logs using
+     * Builder.setSharedWriter() may take together; build() fails for a log
+     * that would go over it. Roughly, each buffered row of a log with n
+     * columns takes 96 + 14 * n bytes. The default is 16 MB.
+     */
+    public static void setSharedWriterMemoryBudget(long bytes)
+    {
+        if (bytes < 0) throw new RuntimeException("Memory budget must not be negative!");
+        SharedWriter.setBudget(bytes);
+    }
 
-        public void set(float val)
-        {
-            str = String.format("%.3f", val);
-        }
+    /*
+     * Creates a Batch, which writes many lines per call from arrays of
+     * values, one array per column (see Batch). Call it from the OpMode
+     * thread, typically once in init.
+     */
+    public Batch newBatch()
+    {
+        return new Batch();
+    }
 
-        // 6-7-22 Add overloaded method with optional format parameter.
-        public void set(String valFormat, float val)
-        {
-            str = String.format(valFormat, val);
-        }
-        
-        public void set(double val)
-        {
-            str = String.format("%.3f", val);
-        }
-        
-        // 6-7-22 Add overloaded method with optional format parameter.
-        public void set(String valFormat, double val)
-        {
-            str = String.format(valFormat, val);
-        }
-                
-        // 6-7-22  Added this method so user OpMode telemetry can display 
-        // field contents (instead of memory address).
-        @Override
-        public String toString()
-        {
-            return str;
-        }
+    /*
+     * The longest time, in milliseconds, that a written line waited between
+     * being sampled and being forced to storage: the worst-case data-loss
+     * window seen so far. Requires Builder.setSyncPolicy(); 0 otherwise.
+     */
+    public double getMaxUnsyncedMillis()
+    {
+        return syncPolicy == null ? 0 : syncPolicy.maxUnsyncedNs / 1e6;
     }
 
-    private static class TimestampField extends LoggableField
+    // Number of times the log has been forced to storage by Builder.setSyncPolicy().
+    public long getSyncCount()
     {
-        private long tRef;
-        private final DecimalFormat timeFmt = new DecimalFormat("000.000");
+        return syncPolicy == null ? 0 : syncPolicy.syncCount;
+    }
 
-        public TimestampField(String name)
-        {
-            super(name);
-            tRef = System.currentTimeMillis();
-        }
+    /*
+     * Lines that were not sent to live-stream clients because the network
+     * thread had fallen behind (see Builder.setLiveStream()), plus those each
+     * TCP client missed while its connection was backed up and those a UDP
+     * client missed when sending to it failed. They are still in the log
+     * file.
+     */
+    public long getStreamDroppedLines()
+    {
+        return liveStream == null ? 0 : liveStream.getDroppedLines();
+    }
 
-        public void resetRef()
-        {
-            tRef = System.currentTimeMillis();
-        }
+    /*
+     * In flight-recorder mode (Builder.setFlightRecorder()), writes the
+     * recorded lines from the pre-trigger window before now until the
+     * post-trigger window after it. Ignored while an earlier trigger's
+     * capture is still in progress.
+     */
+    public void trigger()
+    {
+        if (flightRecorder == null) throw new RuntimeException("trigger() requires Builder.setFlightRecorder()!");
+        flightRecorder.trigger(System.nanoTime());
+    }
 
-        @Override
-        public void writeToBuffer(StringBuilder out)
-        {
-            long deltaMs = System.currentTimeMillis() - tRef;
-            float delta = deltaMs / 1000f;
-            out.append(timeFmt.format(delta));
-        }
+    /*
+     * Same as trigger(), with a logEvent(reason) line to mark the moment.
+     * Without Builder.setEventColumn() there is no column for the reason,
+     * so only the trigger happens.
+     */
+    public void trigger(String reason)
+    {
+        if (flightRecorder == null) throw new RuntimeException("trigger() requires Builder.setFlightRecorder()!");
+        if (eventColumn >= 0) logEvent(reason);
+        trigger();
     }
 
-    public enum AutoTimestamp
+    /*
+     * Returns a snapshot of the logger's own measurements, e.g. for
+     * telemetry.addData("Log", datalogger.getMetrics()). Call it from the
+     * OpMode thread. Allocates one small object; use getMetrics(Metrics)
+     * to refill the same one every loop instead.
+     */
+    public Metrics getMetrics()
     {
-        DECIMAL_SECONDS,
-        NONE
+        Metrics metrics = new Metrics();
+        getMetrics(metrics);
+        return metrics;
     }
 
-    public static class Builder
+    public void getMetrics(Metrics out)
     {
-        private String filename;
-        private LoggableField[] fields;
-        private AutoTimestamp autoTimestamp;
+        out.lines = writeLineLatency.count;
+        out.latencyP50Ns = writeLineLatency.percentile(0.50);
+        out.latencyP99Ns = writeLineLatency.percentile(0.99);
+        out.latencyMaxNs = writeLineLatency.max;
+        // A flight recorder keeps most rows in memory; only those it dumps reach the file.
+        out.rowsWritten = flightRecorder != null ? flightRecorder.rowsWritten : writerStats.rowsWritten;
+        out.bytesWritten = writerStats.bytesWritten;
+        out.flushCount = writerStats.flushCount;
+        out.flushTotalNs = writerStats.flushTotalNs;
+        out.flushMaxNs = writerStats.flushMaxNs;
+        out.droppedRows = getDroppedRows();
+        out.decimatedRows = getDecimatedRows();
+        out.lateRows = getLateRows();
+    }
 
-        public Builder setFilename(String filename)
-        {
-            this.filename = filename;
-            return this;
-        }
+    /*
+     * Returns the number of Producer lines that reached the writer after a
+     * later line had already been written, so they appear out of time order
+     * in the log. Raise Builder.setMergeDelay() if this keeps growing.
+     */
+    public long getLateRows()
+    {
+        return asyncWriter == null ? 0 : asyncWriter.lateRows;
+    }
 
-        public Builder setFields(LoggableField... fields)
-        {
-            this.fields = fields;
-            return this;
-        }
+    private void captureFields(Row row, long now)
+    {
+        row.overlay = false;
+        row.timeNs = now;
 
-        public Builder setAutoTimestamp(AutoTimestamp autoTimestamp)
+        if (sampler == null)
         {
-            this.autoTimestamp = autoTimestamp;
-            return this;
+            for (int i = 0; i < fields.length; i++)
+            {
+                row.carried[i] = false;
+                row.empty[i] = producerOwned[i];
+                if (!row.empty[i])
+                {
+                    ColumnPlan.capture(plan[i], fields[i], row, i);
+                }
+            }
+            return;
         }
 
-        public Datalogger build()
+        // Fields that are not due this row are neither captured nor formatted.
+        for (int i = 0; i < fields.length; i++)
         {
-            if (filename == null) throw new RuntimeException("Filename must not be null!");
-            if (filename.endsWith(".csv")) filename = filename.replace(".csv", "");
-            if (fields == null) throw new RuntimeException("Fields must not be null!");
-            if (fields.length == 0) throw new RuntimeException("Fields must be non-zero length!");
-            if (autoTimestamp == null) throw new RuntimeException("AutoTimestamp must not be null!");
-
-            if (autoTimestamp == AutoTimestamp.DECIMAL_SECONDS)
+            if (producerOwned[i])
             {
-                LoggableField[] tmp = new LoggableField[fields.length+1];
-                tmp[0] = new TimestampField("Timestamp");
-                System.arraycopy(fields, 0, tmp, 1, fields.length);
-                fields = tmp;
+                row.empty[i] = true;
+                row.carried[i] = false;
             }
-
-            try
+            else if (sampler.isDue(i, now))
             {
-                BufferedCsvWriter bufferedCsvWriter = new BufferedCsvWriter(String.format("/sdcard/FIRST/java/src/Datalogs/%s.txt", filename));
-                return new Datalogger(bufferedCsvWriter, fields);
+                row.empty[i] = false;
+                row.carried[i] = false;
+                ColumnPlan.capture(plan[i], fields[i], row, i);
             }
-            catch (IOException e)
+            else
             {
-                e.printStackTrace();
-                throw new RuntimeException("Unable to create output file handle :(");
+                row.empty[i] = !sampler.carryForward;
+                row.carried[i] = sampler.carryForward;
             }
         }
+        sampler.rowCount++;
     }
 
-    private static class BufferedCsvWriter
+    // Only the timestamp and the event text are captured; other columns stay empty.
+    private void captureEvent(Row row, String event, long now)
     {
-        private FileWriter fileWriter;
-        private BufferedWriter bufferedWriter;
+        row.overlay = true;
+        row.timeNs = now;
 
-        public BufferedCsvWriter(String filepath) throws IOException
+        for (int i = 0; i < fields.length; i++)
         {
-            File tmp = new File(filepath);
-            if (!tmp.exists())
+            row.carried[i] = false;
+            row.empty[i] = !(fields[i] instanceof TimestampField);
+            if (!row.empty[i])
             {
-                tmp.getParentFile().mkdirs();
+                fields[i].capture(row, i);
             }
-
-            fileWriter = new FileWriter(filepath, false);
-            bufferedWriter = new BufferedWriter(fileWriter);
         }
 
-        public void writeLine(String line) throws IOException
+        row.empty[eventColumn] = false;
+        row.setRef(eventColumn, event);
+    }
+
+    private void writeRow(Row row) throws IOException
+    {
+        if (writeTimeColumn >= 0)
         {
-            bufferedWriter.write(line);
-            bufferedWriter.newLine();
+            WriteMicrosField field = (WriteMicrosField) fields[writeTimeColumn];
+            row.longs[writeTimeColumn] = field.micros(System.nanoTime());
         }
-
-        public void close() throws IOException
+        logWriter.writeRow(fields, row);
+        writerStats.rowWritten(logWriter.position());
+        if (syncPolicy != null && syncPolicy.rowWritten(row.timeNs))
         {
-            bufferedWriter.close();
+            sync();
+        }
+    }
+
+    private void syncIfDue() throws IOException
+    {
+        if (syncPolicy != null && syncPolicy.isDue(System.nanoTime()))
+        {
+            sync();
+        }
+    }
+
+    private void sync() throws IOException
+    {
+        logWriter.sync();
+        if (syncPolicy != null) syncPolicy.synced(System.nanoTime());
+    }
+
+    // Called by the SDK when the OpMode stops, or by the crash handler; whichever comes first.
+    private synchronized void close()
+    {
+        if (closed) return;
+        closed = true;
+
+        if (crashHandler != null)
+        {
+            crashHandler.uninstall();
+        }
+
+        if (asyncWriter != null)
+        {
+            asyncWriter.finish();
+        }
+
+        try
+        {
+            // Every other line has been written by now, so the summary covers them all.
+            if (metricsOnClose)
+            {
+                Row row = new Row(fields.length);
+                captureEvent(row, getMetrics().toString(), System.nanoTime());
+                writeRow(row);
+            }
+            if (syncPolicy != null) sync();
+            logWriter.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * A snapshot of every field's value for one line of the log.
+     *
+     * Fields copy their value into a Row on the OpMode thread (capture) and
+     * turn it into text later (writeCaptured), possibly on the background
+     * writer thread. Primitive values go in the long slots, immutable objects
+     * such as Strings go in the reference slots. A column marked empty is
+     * written as an empty cell; a carried column repeats the previous line's
+     * cell without being captured again.
+     */
+    public static final class Row
+    {
+        private final long[] longs;
+        private final Object[] refs;
+        private final boolean[] empty;
+        private final boolean[] carried;
+        private boolean overlay;    // a logEvent() or Producer line; leaves carried values alone
+        private long timeNs;        // System.nanoTime() of the sample; orders merged lines
+        private int droppedBefore;  // async: rows dropped just before this one, for a marker line
+        private int decimation;     // async: the new ADAPTIVE_DECIMATE factor, or 0 if unchanged
+        private StringBuilder[] text;
+
+        Row(int columns)
+        {
+            longs = new long[columns];
+            refs = new Object[columns];
+            empty = new boolean[columns];
+            carried = new boolean[columns];
+        }
+
+        public void setEmpty(int column)
+        {
+            empty[column] = true;
+        }
+
+        public boolean isEmpty(int column)
+        {
+            return empty[column];
+        }
+
+        public void setLong(int column, long value)
+        {
+            longs[column] = value;
+        }
+
+        public long getLong(int column)
+        {
+            return longs[column];
+        }
+
+        public void setRef(int column, Object value)
+        {
+            refs[column] = value;
+        }
+
+        public Object getRef(int column)
+        {
+            return refs[column];
+        }
+
+        public long getTimeNs()
+        {
+            return timeNs;
+        }
+
+        // Copies one column's captured value (not its empty or carried flag) from another row.
+        void copyValue(Row from, int column)
+        {
+            longs[column] = from.longs[column];
+            refs[column] = from.refs[column];
+            if (from.text != null && from.text[column] != null)
+            {
+                StringBuilder text = text(column);
+                text.setLength(0);
+                text.append(from.text[column]);
+            }
+        }
+
+        // Copies a whole row, for a writer that must free the ring slot before formatting it.
+        void copyFrom(Row from)
+        {
+            System.arraycopy(from.longs, 0, longs, 0, longs.length);
+            System.arraycopy(from.refs, 0, refs, 0, refs.length);
+            System.arraycopy(from.empty, 0, empty, 0, empty.length);
+            System.arraycopy(from.carried, 0, carried, 0, carried.length);
+            overlay = from.overlay;
+            timeNs = from.timeNs;
+            droppedBefore = from.droppedBefore;
+            decimation = from.decimation;
+            for (int i = 0; from.text != null && i < longs.length; i++)
+            {
+                if (from.text[i] != null)
+                {
+                    text(i).setLength(0);
+                    text[i].append(from.text[i]);
+                }
+            }
+        }
+
+        // Per-column scratch text, for fields that can only snapshot themselves as text.
+        public StringBuilder text(int column)
+        {
+            if (text == null)
+            {
+                text = new StringBuilder[longs.length];
+            }
+            if (text[column] == null)
+            {
+                text[column] = new StringBuilder(16);
+            }
+            return text[column];
+        }
+    }
+
+    /*
+     * Decides which fields are logged on each line when some fields are
+     * sampled less often than others (see Builder.setSampleEvery() and
+     * Builder.setSamplePeriod()).
+     */
+    private static class Sampler
+    {
+        private final int[] every;          // log on every n-th line; 1 = every line
+        private final long[] periodNs;      // minimum time between samples; 0 = unused
+        private final long[] nextDueNs;
+        private final boolean carryForward;
+        private final boolean usesPeriods;
+        private long rowCount;
+
+        Sampler(int[] every, long[] periodNs, boolean carryForward)
+        {
+            this.every = every;
+            this.periodNs = periodNs;
+            this.nextDueNs = new long[every.length];
+            this.carryForward = carryForward;
+
+            boolean periods = false;
+            for (long period : periodNs)
+            {
+                periods |= period > 0;
+            }
+            usesPeriods = periods;
+        }
+
+        boolean isDue(int column, long nowNs)
+        {
+            if (periodNs[column] > 0)
+            {
+                // The first line is always sampled; after that, once per period.
+                if (rowCount > 0 && nowNs - nextDueNs[column] < 0) return false;
+                nextDueNs[column] = nowNs + periodNs[column];
+                return true;
+            }
+            return rowCount % every[column] == 0;
+        }
+    }
+
+    /*
+     * Change-only logging (see Builder.setWriteOnChange()). A line is written
+     * only when a trigger field moved by more than its deadband since the last
+     * written line, or when the heartbeat period has passed without one.
+     *
+     * Trigger fields are captured into a private row for the comparison, so
+     * a skipped line never touches the async ring or the file.
+     */
+    private static class ChangeFilter
+    {
+        private final int[] columns;
+        private final double[] deadbands;
+        private final long heartbeatNs;    // 0 = no heartbeat
+
+        private final Row current;
+        private final Row last;
+        private boolean written;
+        private long lastWriteNs;
+
+        ChangeFilter(int columnCount, int[] columns, double[] deadbands, long heartbeatNs)
+        {
+            this.columns = columns;
+            this.deadbands = deadbands;
+            this.heartbeatNs = heartbeatNs;
+            current = new Row(columnCount);
+            last = new Row(columnCount);
+        }
+
+        boolean isTrigger(int column)
+        {
+            for (int c : columns)
+            {
+                if (c == column) return true;
+            }
+            return false;
+        }
+
+        boolean shouldWrite(LoggableField[] fields, long nowNs)
+        {
+            boolean write = !written || (heartbeatNs > 0 && nowNs - lastWriteNs >= heartbeatNs);
+
+            for (int k = 0; k < columns.length; k++)
+            {
+                int c = columns[k];
+                current.empty[c] = false;
+                fields[c].capture(current, c);
+                if (!write && changed(fields[c], c, deadbands[k]))
+                {
+                    write = true;
+                }
+            }
+
+            return write;
+        }
+
+        /*
+         * Called once the line shouldWrite() allowed has been claimed, so a
+         * line the async buffer dropped is neither the next comparison's
+         * baseline nor a heartbeat.
+         */
+        void markWritten(LoggableField[] fields, long nowNs)
+        {
+            for (int c : columns)
+            {
+                last.empty[c] = current.empty[c];
+                last.longs[c] = current.longs[c];
+                if (fields[c].getColumnType() == ColumnType.TEXT && !current.empty[c])
+                {
+                    last.refs[c] = fields[c].capturedString(current, c);
+                }
+            }
+            written = true;
+            lastWriteNs = nowNs;
+        }
+
+        private boolean changed(LoggableField field, int c, double deadband)
+        {
+            if (current.empty[c] || last.empty[c]) return current.empty[c] != last.empty[c];
+
+            long now = current.longs[c];
+            long before = last.longs[c];
+            switch (field.getColumnType())
+            {
+                case TEXT:
+                    String text = field.capturedString(current, c);
+                    return text == null ? last.refs[c] != null : !text.equals(last.refs[c]);
+                case DOUBLE:
+                    double a = Double.longBitsToDouble(now);
+                    double b = Double.longBitsToDouble(before);
+                    if (Double.isNaN(a) || Double.isNaN(b)) return Double.isNaN(a) != Double.isNaN(b);
+                    return Math.abs(a - b) > deadband;
+                case BOOLEAN:
+                    return now != before;
+                default:
+                    return Math.abs((double) now - before) > deadband;
+            }
+        }
+    }
+
+    /*
+     * The logger's own measurements at one moment; see getMetrics().
+     * Times are in nanoseconds. toString() gives one line without commas,
+     * suitable for telemetry or the event column.
+     */
+    public static final class Metrics
+    {
+        private long lines;
+        private long latencyP50Ns;
+        private long latencyP99Ns;
+        private long latencyMaxNs;
+        private long rowsWritten;
+        private long bytesWritten;
+        private long flushCount;
+        private long flushTotalNs;
+        private long flushMaxNs;
+        private long droppedRows;
+        private long decimatedRows;
+        private long lateRows;
+
+        // Calls to writeLine(), including lines skipped by setWriteOnChange().
+        public long getLines()
+        {
+            return lines;
+        }
+
+        // Time spent inside writeLine(), from a histogram with 1/8 (12.5%) resolution.
+        public long getLatencyP50Ns()
+        {
+            return latencyP50Ns;
+        }
+
+        public long getLatencyP99Ns()
+        {
+            return latencyP99Ns;
+        }
+
+        // Exact.
+        public long getLatencyMaxNs()
+        {
+            return latencyMaxNs;
+        }
+
+        // Lines that reached the file, including logEvent() and Producer lines.
+        public long getRowsWritten()
+        {
+            return rowsWritten;
+        }
+
+        // Bytes written to the file (all segments, before compression), headers included.
+        public long getBytesWritten()
+        {
+            return bytesWritten;
+        }
+
+        /*
+         * Times buffered bytes were handed to the file: each time the 64 KB
+         * output buffer filled, each sync (Builder.setSyncPolicy(), segment
+         * rotation) and the final close. The mean and max below are how long
+         * the writing thread was stalled by them.
+         */
+        public long getFlushCount()
+        {
+            return flushCount;
+        }
+
+        public long getFlushMeanNs()
+        {
+            return flushCount == 0 ? 0 : flushTotalNs / flushCount;
+        }
+
+        public long getFlushMaxNs()
+        {
+            return flushMaxNs;
+        }
+
+        public long getDroppedRows()
+        {
+            return droppedRows;
+        }
+
+        public long getDecimatedRows()
+        {
+            return decimatedRows;
+        }
+
+        public long getLateRows()
+        {
+            return lateRows;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder out = new StringBuilder(160);
+            out.append("lines=").append(lines);
+            out.append(" rows=").append(rowsWritten);
+            out.append(" bytes=").append(bytesWritten);
+            out.append(" dropped=").append(droppedRows);
+            if (decimatedRows > 0) out.append(" decimated=").append(decimatedRows);
+            out.append(" late=").append(lateRows);
+            out.append(" p50us=");
+            CsvNumberEncoder.appendFixed(out, latencyP50Ns / 1e3, 1);
+            out.append(" p99us=");
+            CsvNumberEncoder.appendFixed(out, latencyP99Ns / 1e3, 1);
+            out.append(" maxus=");
+            CsvNumberEncoder.appendFixed(out, latencyMaxNs / 1e3, 1);
+            out.append(" flushes=").append(flushCount);
+            out.append(" flushMeanMs=");
+            CsvNumberEncoder.appendFixed(out, getFlushMeanNs() / 1e6, 3);
+            out.append(" flushMaxMs=");
+            CsvNumberEncoder.appendFixed(out, flushMaxNs / 1e6, 3);
+            return out.toString();
+        }
+    }
+
+    /*
+     * Log-linear histogram of durations in nanoseconds: each power of two is
+     * split into 8 buckets, so a percentile is within 12.5% of the true
+     * value. Recording is a few shifts and an array increment, with no
+     * allocation. Updated and read on the OpMode thread only.
+     */
+    private static final class LatencyHistogram
+    {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB_BUCKETS];
+        private long count;
+        private long max;
+
+        void record(long ns)
+        {
+            if (ns < 0) ns = 0;
+            counts[index(ns)]++;
+            count++;
+            if (ns > max) max = ns;
+        }
+
+        // Values below 8 ns get a bucket each; above that, 8 buckets per power of two.
+        private static int index(long ns)
+        {
+            if (ns < SUB_BUCKETS) return (int) ns;
+            int shift = 63 - Long.numberOfLeadingZeros(ns) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((ns >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        // The highest value that falls in a bucket.
+        private static long upperBound(int index)
+        {
+            if (index < SUB_BUCKETS) return index;
+            int shift = index / SUB_BUCKETS - 1;
+            long low = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return low + (1L << shift) - 1;
+        }
+
+        long percentile(double fraction)
+        {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upperBound(i), max);
+            }
+            return max;
+        }
+    }
+
+    /*
+     * What reached the file, counted by whichever thread writes rows and
+     * read by getMetrics() on the OpMode thread.
+     */
+    private static final class WriterStats
+    {
+        private long lastPosition;
+        private volatile long rowsWritten;
+        private volatile long bytesWritten;
+        private volatile long flushCount;
+        private volatile long flushTotalNs;
+        private volatile long flushMaxNs;
+
+        void headerWritten(long position)
+        {
+            lastPosition = position;
+            bytesWritten = position;
+        }
+
+        // position is the file's size after the row; it starts again when a new segment begins.
+        void rowWritten(long position)
+        {
+            long added = position >= lastPosition ? position - lastPosition : position;
+            lastPosition = position;
+            bytesWritten += added;
+            rowsWritten++;
+        }
+
+        void flushed(long ns)
+        {
+            flushCount++;
+            flushTotalNs += ns;
+            if (ns > flushMaxNs) flushMaxNs = ns;
+        }
+    }
+
+    /*
+     * Bounded-loss durability (see Builder.setSyncPolicy()). Written lines are
+     * forced to the storage device once `rows` lines have been written or
+     * `periodNs` has passed since the last sync, so a brownout or crash loses
+     * at most that much of the log.
+     *
+     * It runs on whichever thread writes rows. In async mode that is the
+     * writer thread, which syncs once for all the lines it wrote since the
+     * last sync (a group commit), so the OpMode never waits for the SD card.
+     */
+    private static class SyncPolicy
+    {
+        private final long periodNs;    // 0 = no time limit
+        private final int rows;         // 0 = no line limit
+
+        private int unsyncedRows;
+        private long oldestUnsyncedNs;  // sample time of the first line written since the last sync
+        private long lastSyncNs;
+
+        private volatile long syncCount;
+        private volatile long maxUnsyncedNs;
+
+        SyncPolicy(long periodNs, int rows)
+        {
+            this.periodNs = periodNs;
+            this.rows = rows;
+            lastSyncNs = System.nanoTime();
+        }
+
+        // Returns true when the line limit has been reached.
+        boolean rowWritten(long rowTimeNs)
+        {
+            if (unsyncedRows == 0) oldestUnsyncedNs = rowTimeNs;
+            unsyncedRows++;
+            return rows > 0 && unsyncedRows >= rows;
+        }
+
+        boolean isDue(long nowNs)
+        {
+            return isDue(nowNs, false);
+        }
+
+        // With `early`, already due once half the period has passed (see SharedWriter).
+        boolean isDue(long nowNs, boolean early)
+        {
+            long period = early ? periodNs / 2 : periodNs;
+            return unsyncedRows > 0 && periodNs > 0 && nowNs - lastSyncNs >= period;
+        }
+
+        void synced(long endNs)
+        {
+            // How long the oldest of these lines could have been lost, from when it was sampled.
+            if (unsyncedRows > 0 && endNs - oldestUnsyncedNs > maxUnsyncedNs)
+            {
+                maxUnsyncedNs = endNs - oldestUnsyncedNs;
+            }
+            unsyncedRows = 0;
+            lastSyncNs = endNs;
+            syncCount++;
+        }
+    }
+
+    /*
+     * Single-producer/single-consumer ring of preallocated rows.
+     *
+     * One thread (the producer) claims a slot, fills it and publishes it by
+     * advancing the tail. The writer thread (consumer) formats published rows
+     * and advances the head. Neither side ever takes a lock. What happens
+     * when the ring is full depends on the Backpressure policy:
+     *
+     * DROP_NEWEST drops the new row, so the producer never waits on the SD
+     * card. BLOCK parks the producer until the writer frees a slot.
+     * DROP_OLDEST has the producer advance the head itself, discarding the
+     * oldest row. Both sides move the head past a row only with a
+     * compare-and-set, and whichever side does so owns the row: the writer
+     * writes it, or the producer counts it as dropped. The writer pins the
+     * row while it copies it out, then takes it and frees the slot before
+     * formatting the copy, so a stalled write doesn't hold the slot the
+     * producer needs next. The producer never refills a pinned slot; if it
+     * discarded the pinned row, the writer's compare-and-set fails and the
+     * copy is thrown away. ADAPTIVE_DECIMATE
+     * halves the rate of rows claimed while the ring is over three-quarters
+     * full, and doubles it while the ring is under a quarter full, each step
+     * after a sixteenth of the ring has been kept at the previous rate.
+     *
+     * Each row claimed after a gap records how many rows were dropped just
+     * before it, or the new decimation factor, so the writer can put a
+     * marker line in the right place; rows discarded by DROP_OLDEST are
+     * counted in `stolen` and marked before the next row written.
+     */
+    private static final class RowRing
+    {
+        private static final long BLOCK_PARK_NS = 100000; // 0.1 ms
+        private static final int MAX_DECIMATION = 64;
+
+        private final Row[] ring;
+        private final int mask;
+        private final Backpressure policy;
+
+        private final AtomicLong head = new AtomicLong(); // next row to write (writer thread)
+        private final AtomicLong tail = new AtomicLong(); // next row to fill (producer thread)
+        private long cachedHead; // producer's last view of head, avoids a volatile read per row
+        private long cachedTail; // writer's last view of tail
+
+        private volatile long droppedRows;
+        private volatile long decimatedRows;
+        private volatile boolean closed; // the writer has stopped; BLOCK stops waiting
+
+        // DROP_OLDEST: the row the writer is copying, or -1, the copy, and rows discarded but not yet marked.
+        private volatile long pinned = -1;
+        private final Row copy;
+        private final AtomicLong stolen = new AtomicLong();
+
+        // Producer thread only.
+        private int pendingDrops;
+        private int decimation = 1;
+        private int decimationCount;
+        private boolean decimationChanged;
+        private int keptSinceChange;
+
+        RowRing(int capacity, int columns, Backpressure policy)
+        {
+            int size = size(capacity);
+            ring = new Row[size];
+            mask = size - 1;
+            this.policy = policy;
+            for (int i = 0; i < size; i++)
+            {
+                ring[i] = new Row(columns);
+            }
+            copy = policy == Backpressure.DROP_OLDEST ? new Row(columns) : null;
+        }
+
+        private static int size(int capacity)
+        {
+            return Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        }
+
+        // Approximate heap used by a ring: a Row is 4 arrays of `columns` slots plus headers.
+        static long bytes(int capacity, int columns)
+        {
+            return (long) size(capacity) * (96 + 14L * columns);
+        }
+
+        // Producer thread: returns a free row, or null if it must be dropped.
+        Row claim()
+        {
+            if (policy == Backpressure.ADAPTIVE_DECIMATE && decimate()) return null;
+            return claimEvent();
+        }
+
+        // Producer thread: like claim(), but for logEvent() lines, which are never thinned out.
+        Row claimEvent()
+        {
+            long t = tail.get();
+            while (t - cachedHead >= ring.length)
+            {
+                cachedHead = freeIndex();
+                if (t - cachedHead < ring.length) break;
+
+                if (policy == Backpressure.BLOCK && !closed)
+                {
+                    LockSupport.parkNanos(BLOCK_PARK_NS);
+                }
+                else if (policy != Backpressure.DROP_OLDEST || !dropOldest(t))
+                {
+                    droppedRows++;
+                    pendingDrops++;
+                    return null;
+                }
+            }
+            return stamp(ring[(int) t & mask]);
+        }
+
+        // The oldest index whose slot the writer may still be reading.
+        private long freeIndex()
+        {
+            long h = head.get();
+            if (policy == Backpressure.DROP_OLDEST)
+            {
+                long p = pinned;
+                if (p >= 0 && p < h) return p;
+            }
+            return h;
+        }
+
+        // DROP_OLDEST: discards the oldest row, or returns false if the slot at t is still being copied.
+        private boolean dropOldest(long t)
+        {
+            long h = head.get();
+            if (t - h < ring.length) return false; // the writer is copying the row that was in that slot
+            if (!head.compareAndSet(h, h + 1)) return true; // the writer took it; look again
+
+            // Ours now, even if the writer is copying it: its own compare-and-set will fail.
+            droppedRows++;
+            stolen.incrementAndGet();
+            return true;
+        }
+
+        // ADAPTIVE_DECIMATE: adjusts the rate as each kept row is claimed; true to skip this row.
+        private boolean decimate()
+        {
+            if (++decimationCount < decimation)
+            {
+                decimatedRows++;
+                return true;
+            }
+            decimationCount = 0;
+            if (++keptSinceChange < ring.length / 16) return false;
+
+            long backlog = tail.get() - head.get();
+            if (backlog >= ring.length * 3 / 4 && decimation < MAX_DECIMATION)
+            {
+                decimation *= 2;
+            }
+            else if (backlog <= ring.length / 4 && decimation > 1)
+            {
+                decimation /= 2;
+            }
+            else
+            {
+                return false;
+            }
+            decimationChanged = true;
+            keptSinceChange = 0;
+            return false;
+        }
+
+        private Row stamp(Row row)
+        {
+            row.droppedBefore = pendingDrops;
+            row.decimation = decimationChanged ? decimation : 0;
+            pendingDrops = 0;
+            decimationChanged = false;
+            return row;
+        }
+
+        // Producer thread: makes the claimed row visible to the writer thread.
+        void publish()
+        {
+            tail.lazySet(tail.get() + 1);
+        }
+
+        /*
+         * Producer thread: claims up to `rows` free rows at once and returns
+         * how many it got; the rest are dropped. Fill them with claimed(0..n-1)
+         * and make them all visible with one publish(n). DROP_NEWEST only;
+         * the other policies claim one row at a time.
+         */
+        int claim(int rows)
+        {
+            long t = tail.get();
+            if (ring.length - (t - cachedHead) < rows)
+            {
+                cachedHead = head.get();
+            }
+            int free = (int) Math.min(rows, ring.length - (t - cachedHead));
+            if (free < rows)
+            {
+                droppedRows += rows - free;
+            }
+            if (free > 0) stamp(ring[(int) t & mask]);
+            pendingDrops += rows - free;
+            return free;
+        }
+
+        // Producer thread: the i-th row returned by claim(int).
+        Row claimed(int i)
+        {
+            Row row = ring[(int) (tail.get() + i) & mask];
+            if (i > 0) row.droppedBefore = row.decimation = 0;
+            return row;
+        }
+
+        void publish(int rows)
+        {
+            tail.lazySet(tail.get() + rows);
+        }
+
+        /*
+         * Writer thread: the oldest published row, or null if there is none.
+         * With DROP_OLDEST the producer may still discard and refill it, so
+         * only use it to choose which ring to peek().
+         */
+        Row look()
+        {
+            long h = head.get();
+            if (h - cachedTail >= 0)
+            {
+                cachedTail = tail.get();
+                if (h - cachedTail >= 0) return null;
+            }
+            return ring[(int) h & mask];
+        }
+
+        // Writer thread: whether at least half the ring is waiting to be written.
+        boolean backedUp()
+        {
+            return tail.get() - head.get() >= ring.length / 2;
+        }
+
+        /*
+         * Writer thread: the oldest published row, kept for the writer until
+         * advance(), or null. With DROP_OLDEST it is a copy, and its slot is
+         * already free.
+         */
+        Row peek()
+        {
+            if (policy != Backpressure.DROP_OLDEST) return look();
+            while (true)
+            {
+                long h = head.get();
+                if (h - cachedTail >= 0)
+                {
+                    cachedTail = tail.get();
+                    if (h - cachedTail >= 0) return null;
+                }
+                pinned = h;
+                if (head.get() == h)
+                {
+                    // The pin keeps the producer from refilling the slot while it is copied.
+                    copy.copyFrom(ring[(int) h & mask]);
+                    boolean taken = head.compareAndSet(h, h + 1);
+                    pinned = -1;
+                    if (taken) return copy;
+                    continue; // the producer discarded it and counted it
+                }
+                pinned = -1; // the producer discarded it meanwhile
+            }
+        }
+
+        // Writer thread: frees the row returned by peek().
+        void advance()
+        {
+            if (policy != Backpressure.DROP_OLDEST) head.lazySet(head.get() + 1);
+        }
+
+        // Writer thread: rows DROP_OLDEST discarded since the last call.
+        long takeStolen()
+        {
+            return policy == Backpressure.DROP_OLDEST && stolen.get() > 0 ? stolen.getAndSet(0) : 0;
+        }
+    }
+
+    /*
+     * Writes the rows published to the OpMode's ring and to any Producer
+     * rings, on its own background thread or, with Builder.setSharedWriter(),
+     * on the one SharedWriter thread together with other logs.
+     *
+     * With only the OpMode's ring, rows are written in the order they were
+     * published. With producers, the writer merges the rings by each row's
+     * nanoTime stamp: it always writes the oldest row at the head of any ring,
+     * but holds it back until every ring has a row waiting or the row is
+     * older than the merge delay, in case a slower producer still publishes
+     * an earlier sample. Nothing is held back while any ring is half full,
+     * as that would only make its producer drop rows. A row that arrives
+     * after a later one was already written is still written, and counted
+     * in lateRows.
+     */
+    private class AsyncWriter implements Runnable
+    {
+        private static final long IDLE_PARK_NS = 2000000; // 2 ms
+
+        private final RowRing mainRing;
+        private volatile RowRing[] rings;
+        private final long mergeDelayNs;
+
+        // This log's own thread, or null when it is written by the SharedWriter.
+        private final Thread thread;
+        private final boolean shared;
+        private long reservedBytes;         // counted against the SharedWriter budget
+        private volatile boolean retired;   // the SharedWriter has finished with this log
+
+        private volatile boolean running = true;
+        private volatile Exception error;
+
+        // Event line for Backpressure markers, and the drops they have reported; writer thread only.
+        private final Row markerRow;
+        private long markedDrops;
+
+        // Merge state; writer thread only, except for reading the counter.
+        private boolean written;
+        private long lastWrittenNs;
+        private volatile long lateRows;
+
+        AsyncWriter(int capacity, long mergeDelayNs, boolean shared)
+        {
+            this.mergeDelayNs = mergeDelayNs;
+            this.shared = shared;
+            if (shared)
+            {
+                thread = null;
+            }
+            else
+            {
+                thread = new Thread(this, "Datalogger-writer");
+                thread.setDaemon(true);
+            }
+
+            mainRing = new RowRing(capacity, fields.length, backpressure);
+            rings = new RowRing[] {mainRing};
+            markerRow = new Row(fields.length);
+            if (shared) reservedBytes = RowRing.bytes(capacity, fields.length);
+        }
+
+        void start()
+        {
+            if (shared)
+            {
+                SharedWriter.register(this);
+            }
+            else
+            {
+                thread.start();
+            }
+        }
+
+        // Adds a producer's ring to the merge; called rarely, so copy-on-write is fine.
+        synchronized void addRing(RowRing ring)
+        {
+            RowRing[] more = Arrays.copyOf(rings, rings.length + 1);
+            more[more.length - 1] = ring;
+            rings = more;
+        }
+
+        long droppedRows()
+        {
+            long dropped = 0;
+            for (RowRing ring : rings)
+            {
+                dropped += ring.droppedRows;
+            }
+            return dropped;
+        }
+
+        long decimatedRows()
+        {
+            long decimated = 0;
+            for (RowRing ring : rings)
+            {
+                decimated += ring.decimatedRows;
+            }
+            return decimated;
+        }
+
+        // No more rows will be written, so Backpressure.BLOCK must not wait for room.
+        void closeRings()
+        {
+            for (RowRing ring : rings)
+            {
+                ring.closed = true;
+            }
+        }
+
+        // Stops writing after every published row has been written.
+        void finish()
+        {
+            running = false;
+            if (shared)
+            {
+                SharedWriter.unregister(this);
+                return;
+            }
+
+            LockSupport.unpark(thread);
+            if (Thread.currentThread() == thread) return; // closing from the crash handler on this thread
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    // Read the flag before draining so rows published before finish() are not lost.
+                    boolean keepRunning = running;
+
+                    write(Integer.MAX_VALUE, !keepRunning);
+                    syncIfDue();
+
+                    if (!keepRunning) break;
+
+                    LockSupport.parkNanos(this, IDLE_PARK_NS);
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // Including a field that fails to format: uncaught, it would take down the Robot Controller app.
+                e.printStackTrace();
+                error = e;
+            }
+            finally
+            {
+                closeRings();
+            }
+        }
+
+        /*
+         * Writes up to maxRows waiting rows and returns how many it wrote.
+         * With flush, rows are not held back for the merge delay.
+         */
+        int write(int maxRows, boolean flush) throws IOException
+        {
+            RowRing[] sources = rings;
+            int count = sources.length == 1 ? drain(mainRing, maxRows) : merge(sources, flush, maxRows);
+
+            // Flushing on close: rows dropped after the last line written have no line to mark them.
+            if (flush && count < maxRows && eventColumn >= 0 && droppedRows() > markedDrops)
+            {
+                writeMarker("dropped " + (droppedRows() - markedDrops) + " lines", System.nanoTime());
+                markedDrops = droppedRows();
+            }
+            return count;
+        }
+
+        private int drain(RowRing ring, int maxRows) throws IOException
+        {
+            int count = 0;
+            for (Row row; count < maxRows && (row = ring.peek()) != null; )
+            {
+                writeMarkers(ring, row);
+                writeRow(row);
+                ring.advance();
+                count++;
+            }
+            return count;
+        }
+
+        // A k-way merge by linear scan; there are only ever a few rings.
+        private int merge(RowRing[] sources, boolean flush, int maxRows) throws IOException
+        {
+            long horizonNs = System.nanoTime() - mergeDelayNs;
+            int count = 0;
+            while (count < maxRows)
+            {
+                RowRing next = null;
+                long nextNs = 0;
+                boolean allWaiting = true;
+                boolean backedUp = false;
+                for (RowRing ring : sources)
+                {
+                    Row row = ring.look();
+                    if (row == null)
+                    {
+                        allWaiting = false;
+                        continue;
+                    }
+                    backedUp |= ring.backedUp();
+                    if (next == null || row.timeNs - nextNs < 0)
+                    {
+                        next = ring;
+                        nextNs = row.timeNs;
+                    }
+                }
+
+                if (next == null) break;
+                if (!flush && !allWaiting && !backedUp && nextNs - horizonNs > 0) break;
+
+                Row row = next.peek();
+                if (row == null) continue;
+                nextNs = row.timeNs;
+
+                if (written && nextNs - lastWrittenNs < 0)
+                {
+                    lateRows++;
+                }
+                else
+                {
+                    lastWrittenNs = nextNs;
+                }
+                written = true;
+
+                writeMarkers(next, row);
+                writeRow(row);
+                next.advance();
+                count++;
+            }
+            return count;
+        }
+
+        // Writes an event line for each gap the ring's Backpressure policy left just before `row`.
+        private void writeMarkers(RowRing ring, Row row) throws IOException
+        {
+            long stolen = ring.takeStolen();
+            if (eventColumn < 0) return;
+
+            if (stolen > 0) writeMarker("dropped " + stolen + " oldest lines", row.timeNs);
+            if (row.droppedBefore > 0) writeMarker("dropped " + row.droppedBefore + " lines", row.timeNs);
+            markedDrops += stolen + row.droppedBefore;
+            if (row.decimation > 1) writeMarker("logging 1 in " + row.decimation + " lines", row.timeNs);
+            if (row.decimation == 1) writeMarker("logging every line", row.timeNs);
+        }
+
+        private void writeMarker(String text, long timeNs) throws IOException
+        {
+            captureEvent(markerRow, "Backpressure: " + text, timeNs);
+            writeRow(markerRow);
+        }
+
+        // SharedWriter: whether this log's sync period has passed, or half of it with `early`.
+        boolean isSyncDue(long nowNs, boolean early)
+        {
+            return syncPolicy != null && syncPolicy.isDue(nowNs, early);
+        }
+
+        void syncNow() throws IOException
+        {
+            sync();
+        }
+    }
+
+    /*
+     * The one writer thread shared by every log built with
+     * Builder.setSharedWriter(), so several logs (drive, vision, arm) don't
+     * each have a thread competing for the SD card.
+     *
+     * Each pass visits the logs round-robin, starting one further along each
+     * time, and writes at most QUANTUM rows from each before moving on, so a
+     * busy log can't hold the others up for long. After each round, if any
+     * log's setSyncPolicy() period is due, every log that is at least
+     * halfway through its own period is synced with it, so the card sees
+     * one burst of syncs rather than a steady trickle.
+     *
+     * The ring buffers of all shared logs together must fit in a memory
+     * budget (Datalogger.setSharedWriterMemoryBudget()). Logs register when
+     * built and unregister when closed, which happens through their
+     * OpModeNotifications when the OpMode stops; the thread exits when the
+     * last log is gone and starts again with the next one.
+     */
+    private static final class SharedWriter implements Runnable
+    {
+        private static final int QUANTUM = 256;
+        private static final long IDLE_PARK_NS = 2000000; // 2 ms
+
+        private static final Object lock = new Object();
+        private static volatile Datalogger.AsyncWriter[] writers = new Datalogger.AsyncWriter[0];
+        private static Thread thread;
+        private static long budgetBytes = 16L << 20;
+        private static long reservedBytes;
+
+        private int nextStart; // round-robin position; writer thread only
+
+        static void setBudget(long bytes)
+        {
+            synchronized (lock)
+            {
+                budgetBytes = bytes;
+            }
+        }
+
+        // Counts a ring buffer against the budget, and against `writer` if not null, or fails if it doesn't fit.
+        static void reserve(Datalogger.AsyncWriter writer, long bytes)
+        {
+            synchronized (lock)
+            {
+                if (reservedBytes + bytes > budgetBytes)
+                {
+                    throw new RuntimeException("Shared writer memory budget exceeded: " + (reservedBytes + bytes) / 1024
+                            + " KB needed, " + budgetBytes / 1024 + " KB allowed; use smaller setAsync() capacities"
+                            + " or Datalogger.setSharedWriterMemoryBudget()!");
+                }
+                reservedBytes += bytes;
+                if (writer != null) writer.reservedBytes += bytes;
+            }
+        }
+
+        static void release(long bytes)
+        {
+            synchronized (lock)
+            {
+                reservedBytes -= bytes;
+            }
+        }
+
+        static void register(Datalogger.AsyncWriter writer)
+        {
+            synchronized (lock)
+            {
+                Datalogger.AsyncWriter[] more = Arrays.copyOf(writers, writers.length + 1);
+                more[more.length - 1] = writer;
+                writers = more;
+                if (thread == null)
+                {
+                    thread = new Thread(new SharedWriter(), "Datalogger-shared-writer");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+        }
+
+        // Returns once the writer thread has written every row the log published.
+        static void unregister(Datalogger.AsyncWriter writer)
+        {
+            Thread current;
+            synchronized (lock)
+            {
+                current = thread;
+            }
+
+            if (Thread.currentThread() == current)
+            {
+                // Closing from the crash handler on the writer thread itself.
+                try
+                {
+                    writer.write(Integer.MAX_VALUE, true);
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+                retire(writer);
+                return;
+            }
+
+            LockSupport.unpark(current);
+            synchronized (writer)
+            {
+                while (!writer.retired)
+                {
+                    try
+                    {
+                        writer.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private static void retire(Datalogger.AsyncWriter writer)
+        {
+            synchronized (lock)
+            {
+                int i = Arrays.asList(writers).indexOf(writer);
+                if (i >= 0)
+                {
+                    Datalogger.AsyncWriter[] fewer = new Datalogger.AsyncWriter[writers.length - 1];
+                    System.arraycopy(writers, 0, fewer, 0, i);
+                    System.arraycopy(writers, i + 1, fewer, i, fewer.length - i);
+                    writers = fewer;
+                    reservedBytes -= writer.reservedBytes;
+                    writer.reservedBytes = 0;
+                }
+                writer.closeRings();
+            }
+            synchronized (writer)
+            {
+                writer.retired = true;
+                writer.notifyAll();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                Datalogger.AsyncWriter[] active = writers;
+                if (active.length == 0)
+                {
+                    synchronized (lock)
+                    {
+                        if (writers.length == 0)
+                        {
+                            thread = null;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+
+                // Repeat while any log had more than a quantum waiting, syncing between rounds.
+                boolean more = true;
+                while (more)
+                {
+                    more = false;
+                    for (int k = 0; k < active.length; k++)
+                    {
+                        Datalogger.AsyncWriter writer = active[(nextStart + k) % active.length];
+                        if (writer.retired) continue;
+
+                        // Read the flag before writing so rows published before finish() are not lost.
+                        boolean stopping = !writer.running;
+                        try
+                        {
+                            int written = writer.write(QUANTUM, stopping);
+                            if (written == QUANTUM)
+                            {
+                                more = true;
+                            }
+                            else if (stopping)
+                            {
+                                retire(writer);
+                            }
+                        }
+                        catch (IOException | RuntimeException e)
+                        {
+                            e.printStackTrace();
+                            writer.error = e;
+                            retire(writer);
+                        }
+                    }
+                    nextStart = (nextStart + 1) % active.length;
+                    syncDue(active);
+                }
+
+                LockSupport.parkNanos(this, IDLE_PARK_NS);
+            }
+        }
+
+        private static void syncDue(Datalogger.AsyncWriter[] active)
+        {
+            long now = System.nanoTime();
+            boolean due = false;
+            for (Datalogger.AsyncWriter writer : active)
+            {
+                if (!writer.retired && writer.isSyncDue(now, false)) due = true;
+            }
+            if (!due) return;
+
+            for (Datalogger.AsyncWriter writer : active)
+            {
+                if (writer.retired || !writer.isSyncDue(now, true)) continue;
+                try
+                {
+                    writer.syncNow();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                    writer.error = e;
+                    retire(writer);
+                }
+            }
+        }
+    }
+
+    /*
+     * Logs fields that are set on another thread, such as a sensor-polling
+     * thread or a vision pipeline callback. See Datalogger.newProducer().
+     *
+     * Only the thread that owns a Producer may call its writeLine(). Each
+     * line holds the timestamp and this producer's fields; the other cells
+     * are empty, and fields sampled with CARRY_FORWARD are not disturbed.
+     */
+    public final class Producer
+    {
+        private final RowRing ring;
+        private final boolean[] captured; // this producer's columns plus the timestamp
+        private long lastTimeNs;
+        private boolean started;
+        private volatile long outOfOrderRows;
+
+        private Producer(RowRing ring, boolean[] captured)
+        {
+            this.ring = ring;
+            this.captured = captured;
+        }
+
+        // Logs this producer's fields, stamped with the current System.nanoTime().
+        public void writeLine()
+        {
+            writeLine(System.nanoTime());
+        }
+
+        /*
+         * Logs this producer's fields as sampled at sampleTimeNs, a
+         * System.nanoTime() value, e.g. when a camera frame was captured
+         * rather than when its detections were ready.
+         */
+        public void writeLine(long sampleTimeNs)
+        {
+            if (started && sampleTimeNs - lastTimeNs < 0)
+            {
+                outOfOrderRows++;
+            }
+            started = true;
+            lastTimeNs = sampleTimeNs;
+
+            Row row = ring.claim();
+            if (row == null) return;
+
+            row.overlay = true;
+            row.timeNs = sampleTimeNs;
+            for (int i = 0; i < fields.length; i++)
+            {
+                row.carried[i] = false;
+                row.empty[i] = !captured[i];
+                if (captured[i])
+                {
+                    fields[i].capture(row, i);
+                }
+            }
+            ring.publish();
+        }
+
+        // Lines discarded because this producer's ring was full.
+        public long getDroppedRows()
+        {
+            return ring.droppedRows;
+        }
+
+        // Lines stamped earlier than this producer's previous line.
+        public long getOutOfOrderRows()
+        {
+            return outOfOrderRows;
+        }
+    }
+
+    /*
+     * Writes a burst of samples as lines, straight from arrays: one array per
+     * column, row r of every array making up line r. See Datalogger.newBatch().
+     *
+     *   Datalogger.Batch imuBatch = datalogger.newBatch();
+     *   imuBatch.setColumn(accelX, ax);            // once; the arrays are read in place
+     *   imuBatch.setColumn(accelY, ay);
+     *   ...
+     *   int n = readFifo(ax, ay, sampleTimesNs);   // each loop, refill the same arrays
+     *   imuBatch.writeLines(n, sampleTimesNs);
+     *
+     * The values go straight from the arrays into the log's rows, without
+     * set() calls, and in async mode all the lines are claimed from and
+     * published to the buffer at once. Like logEvent() lines, each line
+     * holds the timestamp and the batch's columns; the other cells are
+     * empty, and fields sampled with CARRY_FORWARD are not disturbed.
+     *
+     * Use a Batch only from the OpMode thread. If the async buffer has room
+     * for only some of the lines, the newest are dropped and counted in
+     * getDroppedRows().
+     */
+    public final class Batch
+    {
+        private static final int DOUBLES = 0;
+        private static final int LONGS = 1;
+        private static final int INTS = 2;
+        private static final int BOOLEANS = 3;
+
+        private int[] columns = new int[0];   // log column of each batch column
+        private int[] kinds = new int[0];
+        private Object[] arrays = new Object[0];
+        private final int[] timeColumns;      // filled from each line's sample time
+
+        private Batch()
+        {
+            int count = 0;
+            for (LoggableField field : fields)
+            {
+                if (field instanceof TimestampField) count++;
+            }
+            timeColumns = new int[count];
+            count = 0;
+            for (int i = 0; i < fields.length; i++)
+            {
+                if (fields[i] instanceof TimestampField) timeColumns[count++] = i;
+            }
+        }
+
+        public Batch setColumn(DoubleField field, double[] values)
+        {
+            return setColumn(field, DOUBLES, values);
+        }
+
+        public Batch setColumn(LongField field, long[] values)
+        {
+            return setColumn(field, LONGS, values);
+        }
+
+        public Batch setColumn(IntField field, int[] values)
+        {
+            return setColumn(field, INTS, values);
+        }
+
+        public Batch setColumn(BooleanField field, boolean[] values)
+        {
+            return setColumn(field, BOOLEANS, values);
+        }
+
+        // Adds the column, or points it at a new array.
+        private Batch setColumn(LoggableField field, int kind, Object values)
+        {
+            int c = field.column;
+            if (c < 0 || fields[c] != field) throw new RuntimeException("Batch field " + field.name + " is not in setFields()!");
+            if (producerOwned[c]) throw new RuntimeException("Field " + field.name + " belongs to a producer!");
+            if (values == null) throw new RuntimeException("Batch values for " + field.name + " must not be null!");
+
+            int k = 0;
+            while (k < columns.length && columns[k] != c) k++;
+            if (k == columns.length)
+            {
+                columns = Arrays.copyOf(columns, k + 1);
+                kinds = Arrays.copyOf(kinds, k + 1);
+                arrays = Arrays.copyOf(arrays, k + 1);
+                columns[k] = c;
+            }
+            kinds[k] = kind;
+            arrays[k] = values;
+            return this;
+        }
+
+        // Writes lines 0 to rows-1 of the arrays, all stamped with the current time.
+        public void writeLines(int rows)
+        {
+            writeLines(rows, null);
+        }
+
+        /*
+         * Writes lines 0 to rows-1 of the arrays. Line r is stamped with
+         * sampleTimesNs[r], a System.nanoTime() value, e.g. worked back from
+         * the FIFO's sample rate; give them oldest first.
+         */
+        public void writeLines(int rows, long[] sampleTimesNs)
+        {
+            if (rows < 0) throw new RuntimeException("Batch rows must not be negative!");
+            if (sampleTimesNs != null && sampleTimesNs.length < rows) throw new RuntimeException("Fewer sample times than batch rows!");
+            for (int k = 0; k < columns.length; k++)
+            {
+                if (length(k) < rows) throw new RuntimeException("Batch column " + fields[columns[k]].name + " has fewer than " + rows + " values!");
+            }
+            long now = System.nanoTime();
+
+            if (asyncWriter != null)
+            {
+                if (asyncWriter.error != null)
+                {
+                    throw new RuntimeException("Error writing datalog line", asyncWriter.error);
+                }
+                RowRing ring = asyncWriter.mainRing;
+                if (ring.policy != Backpressure.DROP_NEWEST)
+                {
+                    // One row at a time, so each can wait, displace the oldest or be thinned out.
+                    for (int r = 0; r < rows; r++)
+                    {
+                        Row row = ring.claim();
+                        if (row == null) continue;
+                        fill(row, r, sampleTimesNs == null ? now : sampleTimesNs[r]);
+                        ring.publish();
+                    }
+                    return;
+                }
+                int claimed = ring.claim(rows);
+                for (int r = 0; r < claimed; r++)
+                {
+                    fill(ring.claimed(r), r, sampleTimesNs == null ? now : sampleTimesNs[r]);
+                }
+                ring.publish(claimed);
+                return;
+            }
+
+            try
+            {
+                if (crashHandler == null)
+                {
+                    writeSyncRows(rows, sampleTimesNs, now);
+                    return;
+                }
+                // The crash handler may dump and close the recorder from another thread.
+                synchronized (Datalogger.this)
+                {
+                    if (closed) return;
+                    writeSyncRows(rows, sampleTimesNs, now);
+                }
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                throw new RuntimeException("Error writing datalog line");
+            }
+        }
+
+        private void writeSyncRows(int rows, long[] sampleTimesNs, long now) throws IOException
+        {
+            for (int r = 0; r < rows; r++)
+            {
+                fill(syncRow, r, sampleTimesNs == null ? now : sampleTimesNs[r]);
+                writeRow(syncRow);
+            }
+            syncIfDue();
+        }
+
+        private int length(int k)
+        {
+            switch (kinds[k])
+            {
+                case DOUBLES:
+                    return ((double[]) arrays[k]).length;
+                case LONGS:
+                    return ((long[]) arrays[k]).length;
+                case INTS:
+                    return ((int[]) arrays[k]).length;
+                default:
+                    return ((boolean[]) arrays[k]).length;
+            }
+        }
+
+        // Stores line r of the arrays the way each field's capture() would.
+        private void fill(Row row, int r, long timeNs)
+        {
+            row.overlay = true;
+            row.timeNs = timeNs;
+            Arrays.fill(row.empty, true);
+            Arrays.fill(row.carried, false);
+
+            for (int c : timeColumns)
+            {
+                row.empty[c] = false;
+                fields[c].capture(row, c);
+            }
+
+            for (int k = 0; k < columns.length; k++)
+            {
+                int c = columns[k];
+                row.empty[c] = false;
+                switch (kinds[k])
+                {
+                    case DOUBLES:
+                        row.longs[c] = Double.doubleToRawLongBits(((double[]) arrays[k])[r]);
+                        break;
+                    case LONGS:
+                        row.longs[c] = ((long[]) arrays[k])[r];
+                        break;
+                    case INTS:
+                        row.longs[c] = ((int[]) arrays[k])[r];
+                        break;
+                    default:
+                        row.longs[c] = ((boolean[]) arrays[k])[r] ? 1 : 0;
+                        break;
+                }
+            }
+        }
+    }
+
+    public static abstract class LoggableField
+    {
+        protected final String name;
+        private int column = -1;
+
+        public LoggableField(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /*
+         * This field's column in the log (0 = first), fixed when the
+         * Datalogger is built; -1 before that.
+         */
+        public int getColumn()
+        {
+            return column;
+        }
+
+        public abstract void writeToBuffer(StringBuilder out);
+
+        /*
+         * Copies the current value into a row snapshot. This runs on the OpMode
+         * thread, so subclasses should store raw values rather than format them.
+         * The default snapshots the field as text.
+         */
+        protected void capture(Row row, int column)
+        {
+            StringBuilder text = row.text(column);
+            text.setLength(0);
+            writeToBuffer(text);
+        }
+
+        /*
+         * Appends the value stored by capture(). In async mode this runs on the
+         * writer thread, so it must only read from the row.
+         */
+        protected void writeCaptured(Row row, int column, StringBuilder out)
+        {
+            out.append(row.text(column));
+        }
+
+        /*
+         * How the captured value is stored in a binary log. TEXT fields are
+         * stored through capturedString(); the other types store the row's
+         * long slot directly.
+         */
+        protected ColumnType getColumnType()
+        {
+            return ColumnType.TEXT;
+        }
+
+        // Decimal places used when a DOUBLE column is converted back to CSV.
+        protected int getDecimals()
+        {
+            return 0;
+        }
+
+        protected String capturedString(Row row, int column)
+        {
+            return row.text(column).toString();
+        }
+    }
+
+    /*
+     * Value types of a binary log column. Each has a fixed width in bytes,
+     * so every row of a binary log has the same size.
+     */
+    public enum ColumnType
+    {
+        TEXT(0, 4),     // index into the file's string table
+        DOUBLE(1, 8),   // raw IEEE 754 bits, converted with getDecimals() places
+        LONG(2, 8),
+        INT(3, 4),
+        BOOLEAN(4, 1),
+        SECONDS(5, 8);  // milliseconds, converted like TimestampField (000.000)
+
+        final int code;
+        final int width;
+
+        ColumnType(int code, int width)
+        {
+            this.code = code;
+            this.width = width;
+        }
+    }
+
+    public static class GenericField extends LoggableField
+    {
+        private String str = "";
+        private static final String STR_FALSE = "false";
+        private static final String STR_TRUE = "true";
+
+        // Reused to build the text for the numeric set() overloads.
+        private final StringBuilder scratch = new StringBuilder(16);
+
+        public GenericField(String name)
+        {
+            super(name);
+        }
+
+        @Override
+        public void writeToBuffer(StringBuilder out)
+        {
+            out.append(str);
+        }
+
+        // Strings are immutable, so the snapshot is just the reference.
+        @Override
+        protected void capture(Row row, int column)
+        {
+            row.setRef(column, str);
+        }
+
+        @Override
+        protected void writeCaptured(Row row, int column, StringBuilder out)
+        {
+            out.append((String) row.getRef(column));
+        }
+
+        @Override
+        protected String capturedString(Row row, int column)
+        {
+            return (String) row.getRef(column);
+        }
+
+        public void set(String string)
+        {
+            str = string;
+        }
+
+        public void set(String format, Object... args)
+        {
+            str = String.format(format, args);
+        }
+
+        public void set(int val)
+        {
+            scratch.setLength(0);
+            CsvNumberEncoder.appendInt(scratch, val);
+            str = scratch.toString();
+        }
+
+        public void set(boolean val)
+        {
+            str = val ? STR_TRUE : STR_FALSE;
+        }
+
+        public void set(byte val)
+        {
+            scratch.setLength(0);
+            CsvNumberEncoder.appendHexByte(scratch, val);
+            str = scratch.toString();
+        }
+
+        public void set(float val)
+        {
+            scratch.setLength(0);
+            CsvNumberEncoder.appendFixed(scratch, val, 3);
+            str = scratch.toString();
+        }
+
+        // 6-7-22 Add overloaded method with optional format parameter.
+        public void set(String valFormat, float val)
+        {
+            str = String.format(valFormat, val);
+        }
+        
+        public void set(double val)
+        {
+            scratch.setLength(0);
+            CsvNumberEncoder.appendFixed(scratch, val, 3);
+            str = scratch.toString();
+        }
+        
+        // 6-7-22 Add overloaded method with optional format parameter.
+        public void set(String valFormat, double val)
+        {
+            str = String.format(valFormat, val);
+        }
+                
+        // 6-7-22  Added this method so user OpMode telemetry can display 
+        // field contents (instead of memory address).
+        @Override
+        public String toString()
+        {
+            return str;
+        }
+    }
+
+    /*
+     * The following fields hold a raw primitive and only turn it into text
+     * when the line is written, which in async mode happens on the writer
+     * thread. They are cheaper to set() than GenericField on every loop.
+     * Until the first set() they log an empty cell.
+     */
+
+    public static class DoubleField extends LoggableField
+    {
+        private double val;
+        private boolean hasValue;
+        private final int decimals;
+
+        public DoubleField(String name)
+        {
+            this(name, 3);
+        }
+
+        // Logs the value with the given number of decimal places.
+        public DoubleField(String name, int decimals)
+        {
+            super(name);
+            if (decimals < 0 || decimals > CsvNumberEncoder.MAX_DECIMALS)
+            {
+                throw new RuntimeException("Decimals must be between 0 and " + CsvNumberEncoder.MAX_DECIMALS);
+            }
+            this.decimals = decimals;
+        }
+
+        public void set(double val)
+        {
+            this.val = val;
+            hasValue = true;
+        }
+
+        public double get()
+        {
+            return val;
+        }
+
+        @Override
+        public void writeToBuffer(StringBuilder out)
+        {
+            if (hasValue) format(val, out);
+        }
+
+        @Override
+        protected void capture(Row row, int column)
+        {
+            if (!hasValue) row.setEmpty(column);
+            row.setLong(column, Double.doubleToRawLongBits(val));
+        }
+
+        @Override
+        protected void writeCaptured(Row row, int column, StringBuilder out)
+        {
+            format(Double.longBitsToDouble(row.getLong(column)), out);
+        }
+
+        private void format(double val, StringBuilder out)
+        {
+            CsvNumberEncoder.appendFixed(out, val, decimals);
+        }
+
+        @Override
+        protected ColumnType getColumnType()
+        {
+            return ColumnType.DOUBLE;
+        }
+
+        @Override
+        protected int getDecimals()
+        {
+            return decimals;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder out = new StringBuilder();
+            writeToBuffer(out);
+            return out.toString();
+        }
+    }
+
+    public static class LongField extends LoggableField
+    {
+        private long val;
+        private boolean hasValue;
+
+        public LongField(String name)
+        {
+            super(name);
+        }
+
+        public void set(long val)
+        {
+            this.val = val;
+            hasValue = true;
+        }
+
+        public long get()
+        {
+            return val;
+        }
+
+        @Override
+        public void writeToBuffer(StringBuilder out)
+        {
+            if (hasValue) CsvNumberEncoder.appendLong(out, val);
+        }
+
+        @Override
+        protected void capture(Row row, int column)
+        {
+            if (!hasValue) row.setEmpty(column);
+            row.setLong(column, val);
+        }
+
+        @Override
+        protected void writeCaptured(Row row, int column, StringBuilder out)
+        {
+            CsvNumberEncoder.appendLong(out, row.getLong(column));
+        }
+
+        @Override
+        protected ColumnType getColumnType()
+        {
+            return ColumnType.LONG;
+        }
+
+        @Override
+        public String toString()
+        {
+            return hasValue ? Long.toString(val) : "";
+        }
+    }
+
+    public static class IntField extends LoggableField
+    {
+        private int val;
+        private boolean hasValue;
+
+        public IntField(String name)
+        {
+            super(name);
+        }
+
+        public void set(int val)
+        {
+            this.val = val;
+            hasValue = true;
+        }
+
+        public int get()
+        {
+            return val;
+        }
+
+        @Override
+        public void writeToBuffer(StringBuilder out)
+        {
+            if (hasValue) CsvNumberEncoder.appendInt(out, val);
+        }
+
+        @Override
+        protected void capture(Row row, int column)
+        {
+            if (!hasValue) row.setEmpty(column);
+            row.setLong(column, val);
+        }
+
+        @Override
+        protected void writeCaptured(Row row, int column, StringBuilder out)
+        {
+            CsvNumberEncoder.appendInt(out, (int) row.getLong(column));
+        }
+
+        @Override
+        protected ColumnType getColumnType()
+        {
+            return ColumnType.INT;
+        }
+
+        @Override
+        public String toString()
+        {
+            return hasValue ? Integer.toString(val) : "";
+        }
+    }
+
+    public static class BooleanField extends LoggableField
+    {
+        private boolean val;
+        private boolean hasValue;
+
+        public BooleanField(String name)
+        {
+            super(name);
+        }
+
+        public void set(boolean val)
+        {
+            this.val = val;
+            hasValue = true;
+        }
+
+        public boolean get()
+        {
+            return val;
+        }
+
+        // Same text as GenericField.set(boolean).
+        @Override
+        public void writeToBuffer(StringBuilder out)
+        {
+            if (hasValue) out.append(val);
+        }
+
+        @Override
+        protected void capture(Row row, int column)
+        {
+            if (!hasValue) row.setEmpty(column);
+            row.setLong(column, val ? 1 : 0);
+        }
+
+        @Override
+        protected void writeCaptured(Row row, int column, StringBuilder out)
+        {
+            out.append(row.getLong(column) != 0);
+        }
+
+        @Override
+        protected ColumnType getColumnType()
+        {
+            return ColumnType.BOOLEAN;
+        }
+
+        @Override
+        public String toString()
+        {
+            return hasValue ? Boolean.toString(val) : "";
+        }
+    }
+
+    // Holds the text of logEvent() lines; empty on regular lines.
+    private static class EventField extends LoggableField
+    {
+        public EventField(String name)
+        {
+            super(name);
+        }
+
+        @Override
+        public void writeToBuffer(StringBuilder out) {}
+
+        @Override
+        protected void capture(Row row, int column)
+        {
+            row.setEmpty(column);
+        }
+
+        @Override
+        protected void writeCaptured(Row row, int column, StringBuilder out)
+        {
+            out.append((String) row.getRef(column));
+        }
+
+        @Override
+        protected String capturedString(Row row, int column)
+        {
+            return (String) row.getRef(column);
+        }
+    }
+
+    /*
+     * A named set of columns in a fixed order, as an alternative to passing
+     * fields to Builder.setFields(). Columns appear in the order they were
+     * added. Look each field up by name once (e.g. in your OpMode's init),
+     * keep the returned field, and call set() on it in the loop; setting a
+     * value never involves a name lookup.
+     *
+     *   Datalogger.Schema schema = new Datalogger.Schema();
+     *   Datalogger.DoubleField yaw = schema.addDouble("Yaw");
+     *   schema.addText("Status");
+     *   ...
+     *   Datalogger.GenericField status = schema.get("Status", Datalogger.GenericField.class);
+     */
+    public static class Schema
+    {
+        private final LinkedHashMap<String, LoggableField> columns = new LinkedHashMap<>();
+
+        public <T extends LoggableField> T add(T field)
+        {
+            if (columns.containsKey(field.name)) throw new RuntimeException("Duplicate column name: " + field.name);
+            columns.put(field.name, field);
+            return field;
+        }
+
+        public DoubleField addDouble(String name)
+        {
+            return add(new DoubleField(name));
+        }
+
+        public DoubleField addDouble(String name, int decimals)
+        {
+            return add(new DoubleField(name, decimals));
+        }
+
+        public LongField addLong(String name)
+        {
+            return add(new LongField(name));
+        }
+
+        public IntField addInt(String name)
+        {
+            return add(new IntField(name));
+        }
+
+        public BooleanField addBoolean(String name)
+        {
+            return add(new BooleanField(name));
+        }
+
+        public GenericField addText(String name)
+        {
+            return add(new GenericField(name));
+        }
+
+        public LoggableField get(String name)
+        {
+            LoggableField field = columns.get(name);
+            if (field == null) throw new RuntimeException("No column named " + name);
+            return field;
+        }
+
+        public <T extends LoggableField> T get(String name, Class<T> type)
+        {
+            return type.cast(get(name));
+        }
+
+        LoggableField[] toArray()
+        {
+            return columns.values().toArray(new LoggableField[0]);
+        }
+    }
+
+    /*
+     * Time columns added by setAutoTimestamp(). These are filled in on every
+     * line, including logEvent() and Producer lines. Package-private, like
+     * MicrosField, so benchmarks/jmh/TimestampBench can measure them.
+     */
+    static class TimestampField extends LoggableField
+    {
+        // Measured with System.nanoTime(), the same clock that orders merged lines.
+        long tRefNs;
+
+        public TimestampField(String name)
+        {
+            this(name, System.nanoTime());
+        }
+
+        public TimestampField(String name, long tRefNs)
+        {
+            super(name);
+            this.tRefNs = tRefNs;
+        }
+
+        public void resetRef()
+        {
+            tRefNs = System.nanoTime();
+        }
+
+        @Override
+        public void writeToBuffer(StringBuilder out)
+        {
+            format((System.nanoTime() - tRefNs) / 1000000, out);
+        }
+
+        // The time is the row's sample time, not when it reaches the file.
+        @Override
+        protected void capture(Row row, int column)
+        {
+            row.setLong(column, (row.getTimeNs() - tRefNs) / 1000000);
+        }
+
+        @Override
+        protected void writeCaptured(Row row, int column, StringBuilder out)
+        {
+            format(row.getLong(column), out);
+        }
+
+        // Seconds with at least three whole digits, e.g. 012.345
+        private void format(long deltaMs, StringBuilder out)
+        {
+            CsvNumberEncoder.appendSeconds(out, deltaMs, 3);
+        }
+
+        @Override
+        protected ColumnType getColumnType()
+        {
+            return ColumnType.SECONDS;
+        }
+    }
+
+    // Whole microseconds since the log started, from the row's sample time.
+    static class MicrosField extends TimestampField
+    {
+        public MicrosField(String name, long tRefNs)
+        {
+            super(name, tRefNs);
+        }
+
+        @Override
+        public void writeToBuffer(StringBuilder out)
+        {
+            CsvNumberEncoder.appendLong(out, micros(System.nanoTime()));
+        }
+
+        @Override
+        protected void capture(Row row, int column)
+        {
+            row.setLong(column, micros(row.getTimeNs()));
+        }
+
+        @Override
+        protected void writeCaptured(Row row, int column, StringBuilder out)
+        {
+            CsvNumberEncoder.appendLong(out, row.getLong(column));
+        }
+
+        long micros(long timeNs)
+        {
+            return (timeNs - tRefNs) / 1000;
+        }
+
+        @Override
+        protected ColumnType getColumnType()
+        {
+            return ColumnType.LONG;
+        }
+    }
+
+    /*
+     * Microseconds since the log started, taken when the line is written to
+     * the file rather than when it was sampled; see Datalogger.writeRow().
+     */
+    private static class WriteMicrosField extends MicrosField
+    {
+        public WriteMicrosField(String name, long tRefNs)
+        {
+            super(name, tRefNs);
+        }
+
+        @Override
+        protected void capture(Row row, int column) {}
+    }
+
+    /*
+     * Milliseconds since the previous writeLine() line, with 3 decimals, like
+     * the "d ms" column of W_Datalogger_v05. Only regular lines have a value;
+     * it is empty on logEvent(), Producer and Batch lines.
+     */
+    private static class LoopDeltaField extends LoggableField
+    {
+        private long lastNs;
+
+        public LoopDeltaField(String name, long tRefNs)
+        {
+            super(name);
+            lastNs = tRefNs;
+        }
+
+        @Override
+        public void writeToBuffer(StringBuilder out)
+        {
+            CsvNumberEncoder.appendFixed(out, (System.nanoTime() - lastNs) / 1e6, 3);
+        }
+
+        @Override
+        protected void capture(Row row, int column)
+        {
+            row.setLong(column, Double.doubleToRawLongBits((row.getTimeNs() - lastNs) / 1e6));
+            lastNs = row.getTimeNs();
+        }
+
+        @Override
+        protected void writeCaptured(Row row, int column, StringBuilder out)
+        {
+            CsvNumberEncoder.appendFixed(out, Double.longBitsToDouble(row.getLong(column)), 3);
+        }
+
+        @Override
+        protected ColumnType getColumnType()
+        {
+            return ColumnType.DOUBLE;
+        }
+
+        @Override
+        protected int getDecimals()
+        {
+            return 3;
+        }
+    }
+
+    public enum AutoTimestamp
+    {
+        DECIMAL_SECONDS,    // "Timestamp": seconds since the log started, e.g. 012.345
+        MICROSECONDS,       // "Time us": whole microseconds since the log started
+        SECONDS_AND_DELTA,  // "Timestamp" plus "d ms", milliseconds since the previous line
+        CAPTURE_AND_WRITE,  // "Capture us" and "Write us": when each line was sampled, and written to the file
+        NONE
+    }
+
+    public enum SkippedValue
+    {
+        EMPTY,          // an empty cell
+        CARRY_FORWARD   // the field's last logged value, copied without reformatting
+    }
+
+    public enum Format
+    {
+        CSV,        // text, ready for a spreadsheet
+        BINARY,     // compact .dlog file; convert with tools/DatalogToCsv.java
+        COMPRESSED  // .dlog file with compressed blocks of rows, converted the same way
+    }
+
+    // What an async log does when its buffer is full; see Builder.setBackpressure().
+    public enum Backpressure
+    {
+        BLOCK,              // writeLine() waits for the writer to make room
+        DROP_NEWEST,        // the new line is dropped (the default)
+        DROP_OLDEST,        // the oldest line not yet being written is dropped to make room
+        ADAPTIVE_DECIMATE   // only every 2nd, 4th, ... line is kept until the backlog clears
+    }
+
+    // Network protocol for Builder.setLiveStream().
+    public enum StreamProtocol
+    {
+        TCP,    // a CSV stream of whole lines; a backed-up client misses lines, the others don't
+        UDP     // one datagram per line; lost packets only affect that client
+    }
+
+    /*
+     * How bytes reach the file. All three produce identical files; see
+     * benchmarks/README.md for how they compare.
+     */
+    public enum Backend
+    {
+        STREAM,     // FileOutputStream with an unsynchronized 64 KB buffer
+        CHANNEL,    // FileChannel written from a direct ByteBuffer
+        MAPPED      // memory-mapped file, grown in regions and trimmed on close
+    }
+
+    public static class Builder
+    {
+        private String filename;
+        private String directory = DEFAULT_DIRECTORY;
+        private LoggableField[] fields;
+        private AutoTimestamp autoTimestamp;
+        private Format format = Format.CSV;
+        private Backend backend = Backend.STREAM;
+        private int asyncCapacity;
+        private boolean sharedWriter;
+        private Backpressure backpressure;
+        private long maxSegmentBytes;
+        private long maxSegmentMillis;
+        private boolean compressSegments;
+        private long retentionBytes;
+        private final HashMap<LoggableField, Integer> sampleEvery = new HashMap<>();
+        private final HashMap<LoggableField, Long> samplePeriodMs = new HashMap<>();
+        private SkippedValue skippedValue = SkippedValue.EMPTY;
+        private final HashMap<LoggableField, Double> changeDeadbands = new HashMap<>();
+        private long heartbeatMs;
+        private String eventColumnName;
+        private long mergeDelayMs = 20;
+        private long syncPeriodMs;
+        private int syncRows;
+        private boolean metricsOnClose;
+        private long recorderWindowMs;
+        private long recorderPostTriggerMs;
+        private int recorderRows;
+        private StreamProtocol streamProtocol;
+        private int streamPort;
+        private int streamQueueLines;
+        private int indexRows;
+
+        public Builder setFilename(String filename)
+        {
+            this.filename = filename;
+            return this;
+        }
+
+        // Optional; defaults to the OnBot Java Datalogs folder.
+        public Builder setDirectory(String directory)
+        {
+            this.directory = directory;
+            return this;
+        }
+
+        public Builder setFields(LoggableField... fields)
+        {
+            this.fields = fields;
+            return this;
+        }
+
+        // Uses the schema's columns, in the order they were added, instead of setFields().
+        public Builder setSchema(Schema schema)
+        {
+            this.fields = schema.toArray();
+            return this;
+        }
+
+        // Adds a last column, with this heading, that holds the text of logEvent() lines.
+        public Builder setEventColumn(String name)
+        {
+            this.eventColumnName = name;
+            return this;
+        }
+
+        public Builder setAutoTimestamp(AutoTimestamp autoTimestamp)
+        {
+            this.autoTimestamp = autoTimestamp;
+            return this;
+        }
+
+        // Optional; defaults to CSV.
+        public Builder setFormat(Format format)
+        {
+            this.format = format;
+            return this;
+        }
+
+        // Optional; defaults to STREAM.
+        public Builder setBackend(Backend backend)
+        {
+            this.backend = backend;
+            return this;
+        }
+
+        /*
+         * Moves formatting and file I/O to a background thread. writeLine()
+         * then only copies field values into a preallocated ring holding
+         * `capacity` rows; if the writer falls that far behind, new rows
+         * are dropped (see getDroppedRows()) rather than stalling the OpMode,
+         * unless setBackpressure() says otherwise.
+         * Pass 0 to write synchronously (the default).
+         */
+        public Builder setAsync(int capacity)
+        {
+            if (capacity < 0) throw new RuntimeException("Async capacity must not be negative!");
+            this.asyncCapacity = capacity;
+            return this;
+        }
+
+        /*
+         * Writes this log on the one background thread shared by all logs
+         * that set this, instead of on a thread of its own. Several logs
+         * then take turns at the storage device, and their syncs are grouped
+         * together. Their async buffers must fit together in the shared
+         * memory budget (see Datalogger.setSharedWriterMemoryBudget()).
+         * Requires setAsync().
+         */
+        public Builder setSharedWriter(boolean sharedWriter)
+        {
+            this.sharedWriter = sharedWriter;
+            return this;
+        }
+
+        /*
+         * Chooses what happens when the async buffer (or a Producer's) is
+         * full because the storage device can't keep up:
+         *
+         * DROP_NEWEST (the default) drops the line being written. BLOCK makes
+         * writeLine() wait, so no line is lost but the loop can stall for as
+         * long as the SD card does. DROP_OLDEST drops the oldest waiting line
+         * instead, keeping the most recent data. ADAPTIVE_DECIMATE keeps only
+         * every 2nd line once the buffer is three-quarters full, every 4th if
+         * it still fills, and so on, and goes back to every line once the
+         * backlog has cleared; lines that still don't fit are dropped.
+         *
+         * With setEventColumn(), each gap is marked in the log by an event
+         * line such as "Backpressure: dropped 12 lines" or "Backpressure:
+         * logging 1 in 4 lines", so an analysis can tell a gap from a stall.
+         * Requires setAsync().
+         */
+        public Builder setBackpressure(Backpressure backpressure)
+        {
+            this.backpressure = backpressure;
+            return this;
+        }
+
+        /*
+         * Forces the log to the storage device every periodMs or every `lines`
+         * lines, whichever comes first; pass 0 to ignore either limit. By
+         * default the file is only forced when the OpMode stops, so a brownout
+         * or crash can lose everything still buffered.
+         *
+         * A line can be lost for at most about periodMs, plus 2 ms for the
+         * writer to wake and the time the sync itself takes (and the merge
+         * delay, with Producers); getMaxUnsyncedMillis() reports the longest
+         * actually seen. With setAsync() the writer thread does the syncing;
+         * otherwise writeLine() does, and waits for the SD card each time.
+         * See benchmarks/README.md for the throughput cost.
+         */
+        public Builder setSyncPolicy(long periodMs, int lines)
+        {
+            if (periodMs < 0 || lines < 0) throw new RuntimeException("Sync limits must not be negative!");
+            this.syncPeriodMs = periodMs;
+            this.syncRows = lines;
+            return this;
+        }
+
+        /*
+         * Flight-recorder mode: lines are kept in memory, in a ring of maxRows
+         * preallocated rows, and only written to the file around a trigger:
+         * from windowMs before trigger() to postTriggerMs after it. An
+         * exception that would crash the app also triggers a write, and when
+         * the OpMode stops the last windowMs of lines are written. Size
+         * maxRows for the whole capture, e.g. (windowMs + postTriggerMs) /
+         * loop time; if it fills up, the oldest lines are lost first.
+         */
+        public Builder setFlightRecorder(long windowMs, long postTriggerMs, int maxRows)
+        {
+            if (windowMs < 1) throw new RuntimeException("Flight recorder window must be at least 1 ms!");
+            if (postTriggerMs < 0) throw new RuntimeException("Post-trigger window must not be negative!");
+            if (maxRows < 1) throw new RuntimeException("Flight recorder must hold at least 1 row!");
+            this.recorderWindowMs = windowMs;
+            this.recorderPostTriggerMs = postTriggerMs;
+            this.recorderRows = maxRows;
+            return this;
+        }
+
+        /*
+         * Also sends every line, as CSV text, to computers that connect to
+         * this port on the robot's network, e.g. with
+         * tools/DatalogStreamClient.java. Sending happens on its own
+         * low-priority thread; if it falls more than queueLines behind, lines
+         * are left out of the stream (never out of the file) rather than
+         * slowing the OpMode. In flight-recorder mode every line is still
+         * streamed live.
+         */
+        public Builder setLiveStream(StreamProtocol protocol, int port, int queueLines)
+        {
+            if (port < 1 || port > 65535) throw new RuntimeException("Port must be between 1 and 65535!");
+            if (queueLines < 1) throw new RuntimeException("Stream queue must hold at least 1 line!");
+            this.streamProtocol = protocol;
+            this.streamPort = port;
+            this.streamQueueLines = queueLines;
+            return this;
+        }
+
+        // Same as setLiveStream(protocol, port, 256).
+        public Builder setLiveStream(StreamProtocol protocol, int port)
+        {
+            return setLiveStream(protocol, port, 256);
+        }
+
+        /*
+         * Writes a last line when the log closes, with the final getMetrics()
+         * summary in the event column. Requires setEventColumn().
+         */
+        public Builder setMetricsOnClose(boolean metricsOnClose)
+        {
+            this.metricsOnClose = metricsOnClose;
+            return this;
+        }
+
+        /*
+         * How long the writer holds a line back, when Producers are used, in
+         * case another thread still publishes an earlier sample; defaults to
+         * 20 ms. Lines reach the file at least this late. Producers whose
+         * samples are stamped well in the past (e.g. camera frames) need a
+         * longer delay to stay in order; see getLateRows().
+         */
+        public Builder setMergeDelay(long delayMs)
+        {
+            if (delayMs < 0) throw new RuntimeException("Merge delay must not be negative!");
+            this.mergeDelayMs = delayMs;
+            return this;
+        }
+
+        /*
+         * Logs this field only on every n-th writeLine(), e.g. a battery
+         * voltage next to a fast IMU. The other lines get an empty cell or
+         * the last value, per setSkippedValue().
+         */
+        public Builder setSampleEvery(LoggableField field, int lines)
+        {
+            if (lines < 1) throw new RuntimeException("Sample interval must be at least 1 line!");
+            sampleEvery.put(field, lines);
+            samplePeriodMs.remove(field);
+            return this;
+        }
+
+        // Logs this field at most once per periodMs, on the first writeLine() after it is due.
+        public Builder setSamplePeriod(LoggableField field, long periodMs)
+        {
+            if (periodMs < 1) throw new RuntimeException("Sample period must be at least 1 ms!");
+            samplePeriodMs.put(field, periodMs);
+            sampleEvery.remove(field);
+            return this;
+        }
+
+        /*
+         * What to write for a field on lines where it is not sampled; defaults
+         * to EMPTY. Carried values do not cross into a new rotation segment.
+         */
+        public Builder setSkippedValue(SkippedValue skippedValue)
+        {
+            this.skippedValue = skippedValue;
+            return this;
+        }
+
+        /*
+         * Switches to change-only logging: writeLine() then writes a line only
+         * if this field (or another field passed here) changed by more than
+         * `deadband` since the last written line. Text and boolean fields
+         * count any change; use 0 to do the same for numbers.
+         */
+        public Builder setWriteOnChange(LoggableField field, double deadband)
+        {
+            if (deadband < 0) throw new RuntimeException("Deadband must not be negative!");
+            changeDeadbands.put(field, deadband);
+            return this;
+        }
+
+        // With setWriteOnChange(), still writes a line if none was written for periodMs.
+        public Builder setHeartbeatPeriod(long periodMs)
+        {
+            if (periodMs < 0) throw new RuntimeException("Heartbeat period must not be negative!");
+            this.heartbeatMs = periodMs;
+            return this;
+        }
+
+        /*
+         * Starts a new numbered segment file once the current one reaches
+         * maxSegmentBytes or has been open for maxSegmentMillis; pass 0 to
+         * ignore either limit. Each segment begins with the header row.
+         * Numbering continues after any segments already in the folder, so
+         * earlier sessions are kept.
+         */
+        public Builder setRotation(long maxSegmentBytes, long maxSegmentMillis)
+        {
+            if (maxSegmentBytes < 0 || maxSegmentMillis < 0) throw new RuntimeException("Rotation limits must not be negative!");
+            this.maxSegmentBytes = maxSegmentBytes;
+            this.maxSegmentMillis = maxSegmentMillis;
+            return this;
+        }
+
+        // Gzips each closed segment on a background thread. Requires setRotation().
+        public Builder setCompressSegments(boolean compressSegments)
+        {
+            this.compressSegments = compressSegments;
+            return this;
+        }
+
+        /*
+         * Deletes the oldest closed segments once all closed segments of this
+         * log together exceed maxTotalBytes. Requires setRotation().
+         */
+        public Builder setRetentionBytes(long maxTotalBytes)
+        {
+            if (maxTotalBytes < 0) throw new RuntimeException("Retention bytes must not be negative!");
+            this.retentionBytes = maxTotalBytes;
+            return this;
+        }
+
+        /*
+         * Also writes a small sidecar index, "<log file>.idx", with the byte
+         * offset, time span and numeric min/max of every block of blockRows
+         * rows. tools/DatalogIndex.java uses it to read a time range, or
+         * only the blocks where a column is within limits, from a large log
+         * without reading the rest of the file. Requires an auto timestamp;
+         * not available with setCompressSegments().
+         */
+        public Builder setIndex(int blockRows)
+        {
+            if (blockRows < 1) throw new RuntimeException("Index blocks must hold at least 1 row!");
+            this.indexRows = blockRows;
+            return this;
+        }
+
+        public Datalogger build()
+        {
+            if (filename == null) throw new RuntimeException("Filename must not be null!");
+            if (directory == null) throw new RuntimeException("Directory must not be null!");
+            if (filename.endsWith(".csv")) filename = filename.replace(".csv", "");
+            if (fields == null) throw new RuntimeException("Fields must not be null!");
+            if (fields.length == 0) throw new RuntimeException("Fields must be non-zero length!");
+            if (autoTimestamp == null) throw new RuntimeException("AutoTimestamp must not be null!");
+            if (format == null) throw new RuntimeException("Format must not be null!");
+            if (backend == null) throw new RuntimeException("Backend must not be null!");
+            boolean rotate = maxSegmentBytes > 0 || maxSegmentMillis > 0;
+            if (!rotate && (compressSegments || retentionBytes > 0)) throw new RuntimeException("Compression and retention require setRotation()!");
+            if (skippedValue == null) throw new RuntimeException("SkippedValue must not be null!");
+            if (heartbeatMs > 0 && changeDeadbands.isEmpty()) throw new RuntimeException("Heartbeat requires setWriteOnChange()!");
+            if (metricsOnClose && eventColumnName == null) throw new RuntimeException("Metrics on close requires setEventColumn()!");
+            if (recorderRows > 0 && syncPeriodMs + syncRows > 0) throw new RuntimeException("A flight recorder syncs after each write; don't combine it with setSyncPolicy()!");
+            if (indexRows > 0 && autoTimestamp == AutoTimestamp.NONE) throw new RuntimeException("An index requires an auto timestamp!");
+            if (indexRows > 0 && compressSegments) throw new RuntimeException("An index can't point into gzipped segments; don't combine setIndex() with setCompressSegments()!");
+            if (indexRows > 0 && format == Format.COMPRESSED) throw new RuntimeException("An index can't point into compressed blocks; use CSV or BINARY with setIndex()!");
+            if (sharedWriter && asyncCapacity == 0) throw new RuntimeException("A shared writer requires setAsync()!");
+            if (backpressure != null && asyncCapacity == 0) throw new RuntimeException("Backpressure requires setAsync()!");
+
+            if (eventColumnName != null)
+            {
+                fields = Arrays.copyOf(fields, fields.length+1);
+                fields[fields.length-1] = new EventField(eventColumnName);
+            }
+
+            LoggableField[] timeFields = buildTimeFields();
+            if (timeFields.length > 0)
+            {
+                LoggableField[] tmp = new LoggableField[fields.length+timeFields.length];
+                System.arraycopy(timeFields, 0, tmp, 0, timeFields.length);
+                System.arraycopy(fields, 0, tmp, timeFields.length, fields.length);
+                fields = tmp;
+            }
+
+            String extension = format == Format.CSV ? FILE_EXTENSION : BINARY_FILE_EXTENSION;
+
+            // Before any file is created, so a log that doesn't fit leaves nothing behind.
+            long sharedBytes = sharedWriter ? RowRing.bytes(asyncCapacity, fields.length) : 0;
+            if (sharedWriter) SharedWriter.reserve(null, sharedBytes);
+
+            LiveStream stream = null;
+            boolean built = false;
+            try
+            {
+                // Also first, so a port still held by another log doesn't look like a file problem.
+                if (streamProtocol != null)
+                {
+                    stream = openLiveStream();
+                }
+
+                WriterStats writerStats = new WriterStats();
+                LogWriter logWriter;
+                if (rotate)
+                {
+                    logWriter = new RotatingLogWriter(format, backend, directory, filename, extension,
+                            maxSegmentBytes, maxSegmentMillis, compressSegments, retentionBytes, indexRows, writerStats);
+                }
+                else
+                {
+                    logWriter = openLogWriter(format, backend, directory + "/" + filename + extension, indexRows, writerStats);
+                }
+                if (recorderRows > 0)
+                {
+                    logWriter = new FlightRecorder(logWriter, recorderWindowMs * 1000000, recorderPostTriggerMs * 1000000, recorderRows);
+                }
+                if (stream != null)
+                {
+                    logWriter = new LiveStreamLogWriter(logWriter, stream);
+                }
+                SyncPolicy syncPolicy = syncPeriodMs > 0 || syncRows > 0 ? new SyncPolicy(syncPeriodMs * 1000000, syncRows) : null;
+                Datalogger datalogger = new Datalogger(logWriter, writerStats, fields, asyncCapacity, sharedWriter,
+                        backpressure == null ? Backpressure.DROP_NEWEST : backpressure, mergeDelayMs * 1000000,
+                        buildSampler(), buildChangeFilter(), syncPolicy, metricsOnClose);
+                built = true;
+                return datalogger;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                throw new RuntimeException("Unable to create output file handle :(");
+            }
+            finally
+            {
+                // Once built, the log's AsyncWriter holds the reservation until the log closes.
+                if (!built)
+                {
+                    SharedWriter.release(sharedBytes);
+                    if (stream != null) stream.close();
+                }
+            }
+        }
+
+        private LiveStream openLiveStream()
+        {
+            try
+            {
+                return new LiveStream(streamProtocol, streamPort, streamQueueLines);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                throw new RuntimeException("Unable to open live stream port " + streamPort + "!");
+            }
+        }
+
+        // The leading time columns for autoTimestamp, all measured from the same moment.
+        private LoggableField[] buildTimeFields()
+        {
+            long tRefNs = System.nanoTime();
+            switch (autoTimestamp)
+            {
+                case DECIMAL_SECONDS:
+                    return new LoggableField[] {new TimestampField("Timestamp", tRefNs)};
+                case MICROSECONDS:
+                    return new LoggableField[] {new MicrosField("Time us", tRefNs)};
+                case SECONDS_AND_DELTA:
+                    return new LoggableField[] {new TimestampField("Timestamp", tRefNs), new LoopDeltaField("d ms", tRefNs)};
+                case CAPTURE_AND_WRITE:
+                    return new LoggableField[] {new MicrosField("Capture us", tRefNs), new WriteMicrosField("Write us", tRefNs)};
+                default:
+                    return new LoggableField[0];
+            }
+        }
+
+        // Resolves the change triggers to column indexes; null if none were set.
+        private ChangeFilter buildChangeFilter()
+        {
+            if (changeDeadbands.isEmpty()) return null;
+
+            int[] columns = new int[changeDeadbands.size()];
+            double[] deadbands = new double[columns.length];
+            int n = 0;
+            for (int i = 0; i < fields.length; i++)
+            {
+                Double deadband = changeDeadbands.get(fields[i]);
+                if (deadband != null)
+                {
+                    columns[n] = i;
+                    deadbands[n] = deadband;
+                    n++;
+                }
+            }
+            if (n != columns.length)
+            {
+                throw new RuntimeException("A change trigger was set for a field that is not in setFields()!");
+            }
+
+            return new ChangeFilter(fields.length, columns, deadbands, heartbeatMs * 1000000);
+        }
+
+        // Resolves the per-field sample settings to column indexes; null if none were set.
+        private Sampler buildSampler()
+        {
+            if (sampleEvery.isEmpty() && samplePeriodMs.isEmpty()) return null;
+
+            int[] every = new int[fields.length];
+            long[] periodNs = new long[fields.length];
+            int found = 0;
+            for (int i = 0; i < fields.length; i++)
+            {
+                Integer lines = sampleEvery.get(fields[i]);
+                Long periodMs = samplePeriodMs.get(fields[i]);
+                every[i] = lines != null ? lines : 1;
+                periodNs[i] = periodMs != null ? periodMs * 1000000 : 0;
+                if (lines != null || periodMs != null) found++;
+            }
+            if (found != sampleEvery.size() + samplePeriodMs.size())
+            {
+                throw new RuntimeException("Sample rates were set for a field that is not in setFields()!");
+            }
+
+            return new Sampler(every, periodNs, skippedValue == SkippedValue.CARRY_FORWARD);
+        }
+    }
+
+    /*
+     * How each column is captured and formatted, worked out once from the
+     * exact field classes when the log is built.
+     *
+     * writeLine() and CsvLogWriter switch on these codes and handle the
+     * built-in typed fields and timestamps inline, reading the field and
+     * calling CsvNumberEncoder directly. Otherwise a log that mixes several
+     * field classes makes a virtual capture() and writeCaptured() call per
+     * cell, which the JIT can't inline. Any other field, including a
+     * subclass of a typed field, uses its own methods (OTHER).
+     */
+    private static final class ColumnPlan
+    {
+        static final int OTHER = 0;
+        static final int DOUBLE = 1;
+        static final int LONG = 2;
+        static final int INT = 3;
+        static final int BOOLEAN = 4;
+        static final int SECONDS = 5;   // TimestampField
+        static final int MICROS = 6;    // MicrosField
+
+        static int[] of(LoggableField[] fields)
+        {
+            int[] plan = new int[fields.length];
+            for (int i = 0; i < fields.length; i++)
+            {
+                Class<?> type = fields[i].getClass();
+                if (type == DoubleField.class) plan[i] = DOUBLE;
+                else if (type == LongField.class) plan[i] = LONG;
+                else if (type == IntField.class) plan[i] = INT;
+                else if (type == BooleanField.class) plan[i] = BOOLEAN;
+                else if (type == TimestampField.class) plan[i] = SECONDS;
+                else if (type == MicrosField.class) plan[i] = MICROS;
+                else plan[i] = OTHER;
+            }
+            return plan;
+        }
+
+        // Same as field.capture(row, column).
+        static void capture(int code, LoggableField field, Row row, int column)
+        {
+            switch (code)
+            {
+                case DOUBLE:
+                {
+                    DoubleField f = (DoubleField) field;
+                    if (!f.hasValue) row.empty[column] = true;
+                    row.longs[column] = Double.doubleToRawLongBits(f.val);
+                    break;
+                }
+                case LONG:
+                {
+                    LongField f = (LongField) field;
+                    if (!f.hasValue) row.empty[column] = true;
+                    row.longs[column] = f.val;
+                    break;
+                }
+                case INT:
+                {
+                    IntField f = (IntField) field;
+                    if (!f.hasValue) row.empty[column] = true;
+                    row.longs[column] = f.val;
+                    break;
+                }
+                case BOOLEAN:
+                {
+                    BooleanField f = (BooleanField) field;
+                    if (!f.hasValue) row.empty[column] = true;
+                    row.longs[column] = f.val ? 1 : 0;
+                    break;
+                }
+                case SECONDS:
+                    row.longs[column] = (row.timeNs - ((TimestampField) field).tRefNs) / 1000000;
+                    break;
+                case MICROS:
+                    row.longs[column] = (row.timeNs - ((TimestampField) field).tRefNs) / 1000;
+                    break;
+                default:
+                    field.capture(row, column);
+                    break;
+            }
+        }
+
+        // Same as field.writeCaptured(row, column, out).
+        static void format(int code, LoggableField field, Row row, int column, StringBuilder out)
+        {
+            long val = row.longs[column];
+            switch (code)
+            {
+                case DOUBLE:
+                    CsvNumberEncoder.appendFixed(out, Double.longBitsToDouble(val), ((DoubleField) field).decimals);
+                    break;
+                case LONG:
+                case MICROS:
+                    CsvNumberEncoder.appendLong(out, val);
+                    break;
+                case INT:
+                    CsvNumberEncoder.appendInt(out, (int) val);
+                    break;
+                case BOOLEAN:
+                    out.append(val != 0);
+                    break;
+                case SECONDS:
+                    CsvNumberEncoder.appendSeconds(out, val, 3);
+                    break;
+                default:
+                    field.writeCaptured(row, column, out);
+                    break;
+            }
+        }
+    }
+
+    /*
+     * Turns rows into bytes in a file. Only ever called from one thread at a
+     * time: the OpMode thread, or the writer thread in async mode.
+     */
+    private interface LogWriter
+    {
+        void writeHeader(LoggableField[] fields) throws IOException;
+
+        void writeRow(LoggableField[] fields, Row row) throws IOException;
+
+        // Bytes written to the current file so far.
+        long position();
+
+        // Writes out anything buffered and waits until it is on the storage device.
+        void sync() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    // With indexRows > 0, the writer also keeps a sidecar index; see IndexedLogWriter.
+    private static LogWriter openLogWriter(Format format, Backend backend, String filepath, int indexRows,
+                                           WriterStats stats) throws IOException
+    {
+        Output output = openOutput(backend, filepath, stats);
+        LogWriter writer;
+        switch (format)
+        {
+            case BINARY:
+                writer = new BinaryLogWriter(output);
+                break;
+            case COMPRESSED:
+                writer = new CompressedLogWriter(output);
+                break;
+            default:
+                writer = new CsvLogWriter(output);
+                break;
+        }
+        if (indexRows > 0)
+        {
+            writer = new IndexedLogWriter(writer, new StreamOutput(filepath + INDEX_EXTENSION, null), indexRows);
+        }
+        return writer;
+    }
+
+    private static class CsvLogWriter implements LogWriter
+    {
+        private final Output output;
+        private StringBuilder lineBuffer = new StringBuilder(256);
+        private byte[] bytes = new byte[256];
+        private int[] plan;
+
+        // The previous line and where each of its cells starts and ends, for carried cells.
+        private StringBuilder previousLine = new StringBuilder(256);
+        private int[] cellStarts;
+        private int[] cellEnds;
+        private int[] previousStarts;
+        private int[] previousEnds;
+
+        public CsvLogWriter(Output output)
+        {
+            this.output = output;
+        }
+
+        @Override
+        public void writeHeader(LoggableField[] fields) throws IOException
+        {
+            plan = ColumnPlan.of(fields);
+            cellStarts = new int[fields.length];
+            cellEnds = new int[fields.length];
+            previousStarts = new int[fields.length];
+            previousEnds = new int[fields.length];
+
+            lineBuffer.setLength(0);
+
+            for (int i = 0; i < fields.length; i++)
+            {
+                lineBuffer.append(fields[i].name);
+                if (i < fields.length-1)
+                {
+                    lineBuffer.append(",");
+                }
+            }
+
+            writeLine(lineBuffer);
+        }
+
+        @Override
+        public void writeRow(LoggableField[] fields, Row row) throws IOException
+        {
+            lineBuffer.setLength(0);
+
+            // Every cell is followed by a comma; the last one is cut off below.
+            for (int i = 0; i < fields.length; i++)
+            {
+                cellStarts[i] = lineBuffer.length();
+                if (row.carried[i])
+                {
+                    lineBuffer.append(previousLine, previousStarts[i], previousEnds[i]);
+                }
+                else if (!row.empty[i])
+                {
+                    ColumnPlan.format(plan[i], fields[i], row, i, lineBuffer);
+                }
+                cellEnds[i] = lineBuffer.length();
+                lineBuffer.append(',');
+            }
+            lineBuffer.setLength(lineBuffer.length() - 1);
+
+            writeLine(lineBuffer);
+
+            // Keep this line for the next one's carried cells; overlay lines don't count.
+            if (row.overlay) return;
+            StringBuilder line = previousLine;
+            previousLine = lineBuffer;
+            lineBuffer = line;
+            int[] starts = previousStarts;
+            previousStarts = cellStarts;
+            cellStarts = starts;
+            int[] ends = previousEnds;
+            previousEnds = cellEnds;
+            cellEnds = ends;
+        }
+
+        /*
+         * Encodes the line as UTF-8 into a reused array and ends it with '\n',
+         * the same bytes FileWriter and BufferedWriter.newLine() produce on the
+         * robot, without their per-call locking and encoder.
+         */
+        private void writeLine(StringBuilder line) throws IOException
+        {
+            int length = line.length();
+            if (bytes.length < length * 3 + 1)
+            {
+                bytes = new byte[Math.max(length * 3 + 1, bytes.length * 2)];
+            }
+
+            int n = 0;
+            for (int i = 0; i < length; i++)
+            {
+                char c = line.charAt(i);
+                if (c < 0x80)
+                {
+                    bytes[n++] = (byte) c;
+                }
+                else if (c < 0x800)
+                {
+                    bytes[n++] = (byte) (0xc0 | (c >> 6));
+                    bytes[n++] = (byte) (0x80 | (c & 0x3f));
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(line.charAt(i + 1)))
+                {
+                    int cp = Character.toCodePoint(c, line.charAt(++i));
+                    bytes[n++] = (byte) (0xf0 | (cp >> 18));
+                    bytes[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    bytes[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    bytes[n++] = (byte) (0x80 | (cp & 0x3f));
+                }
+                else if (Character.isSurrogate(c))
+                {
+                    bytes[n++] = '?'; // unpaired surrogate, as the UTF-8 encoder replaces it
+                }
+                else
+                {
+                    bytes[n++] = (byte) (0xe0 | (c >> 12));
+                    bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    bytes[n++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            bytes[n++] = '\n';
+
+            output.write(bytes, 0, n);
+        }
+
+        @Override
+        public long position()
+        {
+            return output.position();
+        }
+
+        @Override
+        public void sync() throws IOException
+        {
+            output.sync();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            output.close();
+        }
+    }
+
+    /*
+     * Writes the .dlog binary format, read back by tools/DatalogToCsv.java.
+     * All numbers are little-endian.
+     *
+     * Header:
+     *   "DLOG", u8 version, u16 column count, then for each column:
+     *   u8 ColumnType code, u8 decimals, u16 name length, UTF-8 name
+     *
+     * Then a sequence of records, each starting with a one-byte tag:
+     *   'S'  i32 string id, i32 length, UTF-8 bytes
+     *        Defines (or redefines) an entry of the string table.
+     *   'R'  presence bitmap (1 bit per column, 1 = has a value), then each
+     *        column's value in its ColumnType width, zero-filled if empty.
+     *        Every 'R' record has the same size.
+     *
+     * TEXT values are ids into the string table, so a repeated status string
+     * costs 4 bytes per row. The table is capped at MAX_STRINGS entries; after
+     * that the oldest ids are redefined.
+     */
+    private static class BinaryLogWriter implements LogWriter
+    {
+        static final byte[] MAGIC = {'D', 'L', 'O', 'G'};
+        static final int VERSION = 1;
+        static final byte RECORD_STRING = 'S';
+        static final byte RECORD_ROW = 'R';
+        static final int MAX_STRINGS = 4096;
+
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        private final Output out;
+        private final int version;
+        ByteBuffer buffer = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+
+        private final HashMap<String, Integer> stringIds = new HashMap<>();
+        private final String[] strings = new String[MAX_STRINGS];
+        private int nextStringId;
+
+        // Row in which each id was last used; an id used from pinnedFromRow() on is never redefined.
+        private final long[] stringUsedInRow = new long[MAX_STRINGS];
+        long rowNumber = 1;
+
+        // Column types, looked up once rather than per row.
+        ColumnType[] types;
+
+        // Last string and id per column, to skip the map lookup for unchanged text.
+        private String[] lastStrings;
+        private int[] lastIds;
+        private int rowSize;
+
+        // The values written for each column in the current and previous row.
+        private boolean[] rowEmpty;
+        private long[] rowValues;
+
+        // Overlay lines are written from here, so they don't become the values carried forward.
+        private boolean[] overlayEmpty;
+        private long[] overlayValues;
+
+        public BinaryLogWriter(Output output)
+        {
+            this(output, VERSION);
+        }
+
+        BinaryLogWriter(Output output, int version)
+        {
+            out = output;
+            this.version = version;
+        }
+
+        @Override
+        public void writeHeader(LoggableField[] fields) throws IOException
+        {
+            types = new ColumnType[fields.length];
+            lastStrings = new String[fields.length];
+            lastIds = new int[fields.length];
+            rowEmpty = new boolean[fields.length];
+            rowValues = new long[fields.length];
+            Arrays.fill(rowEmpty, true); // nothing to carry forward yet
+            overlayEmpty = new boolean[fields.length];
+            overlayValues = new long[fields.length];
+            rowSize = 1 + (fields.length + 7) / 8;
+
+            ensureCapacity(8);
+            buffer.put(MAGIC);
+            buffer.put((byte) version);
+            buffer.putShort((short) fields.length);
+            flushBuffer();
+
+            for (int i = 0; i < fields.length; i++)
+            {
+                LoggableField field = fields[i];
+                byte[] name = field.name.getBytes(UTF8);
+                ColumnType type = field.getColumnType();
+                types[i] = type;
+                rowSize += type.width;
+
+                ensureCapacity(4 + name.length);
+                buffer.put((byte) type.code);
+                buffer.put((byte) field.getDecimals());
+                buffer.putShort((short) name.length);
+                buffer.put(name);
+                flushBuffer();
+            }
+        }
+
+        @Override
+        public void writeRow(LoggableField[] fields, Row row) throws IOException
+        {
+            // String definitions must precede the row that uses them.
+            rowNumber++;
+            boolean[] empty;
+            long[] values;
+            if (row.overlay)
+            {
+                empty = overlayEmpty;
+                values = overlayValues;
+                for (int i = 0; i < fields.length; i++)
+                {
+                    resolve(fields[i], row, i, empty, values);
+                }
+            }
+            else
+            {
+                // Carried columns keep the previous row's value in rowEmpty/rowValues.
+                empty = rowEmpty;
+                values = rowValues;
+                for (int i = 0; i < fields.length; i++)
+                {
+                    if (!row.carried[i])
+                    {
+                        resolve(fields[i], row, i, empty, values);
+                    }
+                    else if (types[i] == ColumnType.TEXT && !empty[i])
+                    {
+                        // Re-resolve in case the id was reused since it was written.
+                        values[i] = stringId(i, lastStrings[i]);
+                    }
+                }
+            }
+
+            writeValues(fields, empty, values);
+        }
+
+        // Writes one resolved row as an 'R' record.
+        void writeValues(LoggableField[] fields, boolean[] empty, long[] values) throws IOException
+        {
+            ensureCapacity(rowSize);
+            buffer.put(RECORD_ROW);
+
+            for (int i = 0; i < fields.length; i += 8)
+            {
+                int bits = 0;
+                for (int j = i; j < Math.min(i + 8, fields.length); j++)
+                {
+                    if (!empty[j]) bits |= 1 << (j - i);
+                }
+                buffer.put((byte) bits);
+            }
+
+            for (int i = 0; i < fields.length; i++)
+            {
+                long val = values[i];
+                switch (types[i])
+                {
+                    case TEXT:
+                    case INT:
+                        buffer.putInt((int) val);
+                        break;
+                    case BOOLEAN:
+                        buffer.put((byte) val);
+                        break;
+                    default:
+                        buffer.putLong(val);
+                        break;
+                }
+            }
+
+            flushBuffer();
+        }
+
+        // Stores the value to write for column i: raw bits, or a string id for TEXT.
+        private void resolve(LoggableField field, Row row, int i, boolean[] empty, long[] values) throws IOException
+        {
+            empty[i] = row.empty[i];
+            if (empty[i])
+            {
+                values[i] = 0;
+            }
+            else if (types[i] == ColumnType.TEXT)
+            {
+                values[i] = stringId(i, field.capturedString(row, i));
+            }
+            else
+            {
+                values[i] = row.longs[i];
+            }
+        }
+
+        /*
+         * Forgets the string table, so every string is defined again before
+         * its next use. A reader can then start at the next row without the
+         * definitions written before it (see IndexedLogWriter).
+         */
+        void startBlock()
+        {
+            stringIds.clear();
+            Arrays.fill(strings, null);
+        }
+
+        private int stringId(int column, String text) throws IOException
+        {
+            if (text == null) text = "";
+
+            int id = lastIds[column];
+            if (text == lastStrings[column] && strings[id] == text)
+            {
+                stringUsedInRow[id] = rowNumber;
+                return id;
+            }
+
+            Integer known = stringIds.get(text);
+            if (known != null)
+            {
+                id = known;
+            }
+            else
+            {
+                for (int tries = 0; ; tries++)
+                {
+                    if (tries == MAX_STRINGS) stringTableFull();
+                    if (tries == 2 * MAX_STRINGS) throw new IOException("More than " + MAX_STRINGS + " different strings in one line!");
+                    id = nextStringId;
+                    nextStringId = (nextStringId + 1) % MAX_STRINGS;
+                    if (stringUsedInRow[id] < pinnedFromRow()) break;
+                }
+
+                if (strings[id] != null)
+                {
+                    stringIds.remove(strings[id]);
+                }
+                strings[id] = text;
+                stringIds.put(text, id);
+
+                byte[] bytes = text.getBytes(UTF8);
+                ensureCapacity(9 + bytes.length);
+                buffer.put(RECORD_STRING);
+                buffer.putInt(id);
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+                flushBuffer();
+            }
+
+            lastStrings[column] = text;
+            lastIds[column] = id;
+            stringUsedInRow[id] = rowNumber;
+            return id;
+        }
+
+        // Rows from this one on may still be written, so their string ids must keep their meaning.
+        long pinnedFromRow()
+        {
+            return rowNumber;
+        }
+
+        // Called when every id is pinned, before giving up.
+        void stringTableFull() throws IOException {}
+
+        void ensureCapacity(int bytes)
+        {
+            if (buffer.capacity() < bytes)
+            {
+                buffer = ByteBuffer.allocate(Math.max(bytes, buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        void flushBuffer() throws IOException
+        {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+
+        @Override
+        public long position()
+        {
+            return out.position();
+        }
+
+        @Override
+        public void sync() throws IOException
+        {
+            out.sync();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+
+    /*
+     * Format.COMPRESSED: version 2 of the .dlog format. Rows are resolved
+     * and strings defined as in BinaryLogWriter, but instead of one 'R'
+     * record per row, up to BLOCK_ROWS rows are collected and then encoded
+     * column by column, on the writer thread, into one record:
+     *
+     *   'B'  u16 row count, i32 payload length, payload
+     *
+     * The payload is a bit stream (most significant bit first) with each
+     * column in turn: which rows have a value, as runs, then those values:
+     *
+     *   DOUBLE    XOR with the previous value, as in Facebook's Gorilla:
+     *             '0' if unchanged, '10' + the changed bits if they fit the
+     *             previous window, else '11' + 5-bit leading zeros, 6-bit
+     *             length - 1 and the changed bits
+     *   LONG, INT, SECONDS
+     *             delta-of-delta: the change in the step from the previous
+     *             value, zigzag-encoded, as '0' (no change), '10' + 7 bits,
+     *             '110' + 9, '1110' + 12, '11110' + 32 or '11111' + 64 bits
+     *   BOOLEAN, TEXT and row presence
+     *             runs: the value (1 bit, or a 12-bit string id) and the
+     *             Elias-gamma coded length of each run
+     *
+     * The first value of each column in a block is stored in full, so every
+     * block decodes on its own, given the string table defined before it.
+     * A smoothly changing sensor takes a few bits per row, a steady loop
+     * timestamp about one, and a state string that rarely changes almost
+     * nothing. sync() and close() write a partly filled block.
+     */
+    private static class CompressedLogWriter extends BinaryLogWriter
+    {
+        static final int VERSION = 2;
+        static final byte RECORD_BLOCK = 'B';
+        static final int BLOCK_ROWS = 256;
+        static final int STRING_ID_BITS = 12;
+
+        private boolean[][] blockEmpty;
+        private long[][] blockValues;
+        private int blockRows;
+        private long blockFirstRow;
+        private final long[] scratch = new long[BLOCK_ROWS];
+        private final BitWriter bits = new BitWriter();
+
+        public CompressedLogWriter(Output output)
+        {
+            super(output, VERSION);
+        }
+
+        @Override
+        public void writeHeader(LoggableField[] fields) throws IOException
+        {
+            super.writeHeader(fields);
+            blockEmpty = new boolean[fields.length][BLOCK_ROWS];
+            blockValues = new long[fields.length][BLOCK_ROWS];
+        }
+
+        @Override
+        void writeValues(LoggableField[] fields, boolean[] empty, long[] values) throws IOException
+        {
+            if (blockRows == 0) blockFirstRow = rowNumber;
+            for (int i = 0; i < fields.length; i++)
+            {
+                blockEmpty[i][blockRows] = empty[i];
+                blockValues[i][blockRows] = values[i];
+            }
+            if (++blockRows == BLOCK_ROWS)
+            {
+                writeBlock();
+            }
+        }
+
+        // The rows waiting in the block still refer to their string ids.
+        @Override
+        long pinnedFromRow()
+        {
+            return blockRows > 0 ? blockFirstRow : rowNumber;
+        }
+
+        @Override
+        void stringTableFull() throws IOException
+        {
+            writeBlock();
+        }
+
+        private void writeBlock() throws IOException
+        {
+            if (blockRows == 0) return;
+
+            bits.clear();
+            for (int c = 0; c < types.length; c++)
+            {
+                boolean[] empty = blockEmpty[c];
+                long[] values = blockValues[c];
+
+                int n = 0;
+                for (int r = 0; r < blockRows; r++)
+                {
+                    scratch[r] = empty[r] ? 0 : 1;
+                }
+                writeRuns(scratch, blockRows, 1);
+                for (int r = 0; r < blockRows; r++)
+                {
+                    if (!empty[r]) scratch[n++] = values[r];
+                }
+                if (n == 0) continue;
+
+                switch (types[c])
+                {
+                    case DOUBLE:
+                        writeXor(scratch, n);
+                        break;
+                    case BOOLEAN:
+                        writeRuns(scratch, n, 1);
+                        break;
+                    case TEXT:
+                        writeRuns(scratch, n, STRING_ID_BITS);
+                        break;
+                    default:
+                        writeDeltaOfDelta(scratch, n);
+                        break;
+                }
+            }
+            bits.finish();
+
+            ensureCapacity(7 + bits.length());
+            buffer.put(RECORD_BLOCK);
+            buffer.putShort((short) blockRows);
+            buffer.putInt(bits.length());
+            buffer.put(bits.bytes(), 0, bits.length());
+            flushBuffer();
+            blockRows = 0;
+        }
+
+        private void writeXor(long[] values, int n)
+        {
+            long previous = values[0];
+            bits.write(previous, 64);
+            int windowLeading = -1;
+            int windowTrailing = 0;
+            for (int i = 1; i < n; i++)
+            {
+                long xor = values[i] ^ previous;
+                previous = values[i];
+                if (xor == 0)
+                {
+                    bits.write(0, 1);
+                    continue;
+                }
+
+                int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if (windowLeading >= 0 && leading >= windowLeading && trailing >= windowTrailing)
+                {
+                    bits.write(0b10, 2);
+                    bits.write(xor >>> windowTrailing, 64 - windowLeading - windowTrailing);
+                }
+                else
+                {
+                    int length = 64 - leading - trailing;
+                    bits.write(0b11, 2);
+                    bits.write(leading, 5);
+                    bits.write(length - 1, 6);
+                    bits.write(xor >>> trailing, length);
+                    windowLeading = leading;
+                    windowTrailing = trailing;
+                }
+            }
+        }
+
+        private void writeDeltaOfDelta(long[] values, int n)
+        {
+            bits.write(values[0], 64);
+            long previousDelta = 0;
+            for (int i = 1; i < n; i++)
+            {
+                long delta = values[i] - values[i - 1];
+                long dod = delta - previousDelta;
+                previousDelta = delta;
+
+                // Compared unsigned: a change of 2^62 or more zigzags past 2^63.
+                long zigzag = (dod << 1) ^ (dod >> 63);
+                if (zigzag == 0)
+                {
+                    bits.write(0, 1);
+                }
+                else if ((zigzag >>> 7) == 0)
+                {
+                    bits.write(0b10, 2);
+                    bits.write(zigzag, 7);
+                }
+                else if ((zigzag >>> 9) == 0)
+                {
+                    bits.write(0b110, 3);
+                    bits.write(zigzag, 9);
+                }
+                else if ((zigzag >>> 12) == 0)
+                {
+                    bits.write(0b1110, 4);
+                    bits.write(zigzag, 12);
+                }
+                else if ((zigzag >>> 32) == 0)
+                {
+                    bits.write(0b11110, 5);
+                    bits.write(zigzag, 32);
+                }
+                else
+                {
+                    bits.write(0b11111, 5);
+                    bits.write(zigzag, 64);
+                }
+            }
+        }
+
+        private void writeRuns(long[] values, int n, int valueBits)
+        {
+            int start = 0;
+            while (start < n)
+            {
+                int end = start + 1;
+                while (end < n && values[end] == values[start]) end++;
+                bits.write(values[start], valueBits);
+                writeGamma(end - start);
+                start = end;
+            }
+        }
+
+        // Elias gamma: the number of bits after the first, as zeros, then the number.
+        private void writeGamma(int value)
+        {
+            int length = 32 - Integer.numberOfLeadingZeros(value);
+            bits.write(0, length - 1);
+            bits.write(value, length);
+        }
+
+        @Override
+        public void sync() throws IOException
+        {
+            writeBlock();
+            super.sync();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                writeBlock();
+            }
+            finally
+            {
+                super.close();
+            }
+        }
+    }
+
+    // Packs values into bytes bit by bit, most significant bit first.
+    private static final class BitWriter
+    {
+        private byte[] bytes = new byte[1024];
+        private int length;
+        private long pending;
+        private int pendingBits;
+
+        void clear()
+        {
+            length = 0;
+            pendingBits = 0;
+        }
+
+        // Writes the low `count` bits of value, 0 to 64 of them.
+        void write(long value, int count)
+        {
+            if (count > 32)
+            {
+                write(value >>> 32, count - 32);
+                value &= 0xffffffffL;
+                count = 32;
+            }
+            if (count == 0) return;
+
+            pending = (pending << count) | (value & ((1L << count) - 1));
+            pendingBits += count;
+            while (pendingBits >= 8)
+            {
+                pendingBits -= 8;
+                put((byte) (pending >>> pendingBits));
+            }
+        }
+
+        // Pads the last byte with zero bits.
+        void finish()
+        {
+            if (pendingBits > 0)
+            {
+                put((byte) (pending << (8 - pendingBits)));
+                pendingBits = 0;
+            }
+        }
+
+        private void put(byte b)
+        {
+            if (length == bytes.length)
+            {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = b;
+        }
+
+        byte[] bytes()
+        {
+            return bytes;
+        }
+
+        int length()
+        {
+            return length;
+        }
+    }
+
+    /*
+     * Flight-recorder mode (see Builder.setFlightRecorder()). Rows are copied
+     * into a preallocated ring in memory instead of the file. Only a trigger
+     * writes them out: the rows from windowNs before the trigger until
+     * postTriggerNs after it, like an oscilloscope's pre/post-trigger
+     * capture. After that dump the recorder re-arms. When the log closes,
+     * the last windowNs of rows are written (or the capture around a pending
+     * trigger).
+     *
+     * Carried cells are resolved as rows are recorded, so every row in the
+     * ring stands on its own and a dump can begin with any of them.
+     */
+    private static class FlightRecorder implements LogWriter
+    {
+        private static final long IDLE = Long.MIN_VALUE;
+
+        private final LogWriter out;
+        private final long windowNs;
+        private final long postTriggerNs;
+        private final int capacity;
+
+        private LoggableField[] fields;
+        private Row[] ring;
+        private int first;  // index of the oldest recorded row
+        private int size;
+        private Row last;   // latest value of each column, for carried cells
+
+        // Time of the pending trigger, or IDLE; set by trigger() on any thread.
+        private final AtomicLong triggerNs = new AtomicLong(IDLE);
+        private volatile long rowsWritten;
+
+        FlightRecorder(LogWriter out, long windowNs, long postTriggerNs, int capacity)
+        {
+            this.out = out;
+            this.windowNs = windowNs;
+            this.postTriggerNs = postTriggerNs;
+            this.capacity = capacity;
+        }
+
+        // A trigger while a capture is already pending is ignored.
+        void trigger(long nowNs)
+        {
+            triggerNs.compareAndSet(IDLE, nowNs);
+        }
+
+        @Override
+        public void writeHeader(LoggableField[] fields) throws IOException
+        {
+            this.fields = fields;
+            ring = new Row[capacity];
+            for (int i = 0; i < capacity; i++)
+            {
+                ring[i] = new Row(fields.length);
+            }
+            last = new Row(fields.length);
+            Arrays.fill(last.empty, true);
+            out.writeHeader(fields);
+        }
+
+        @Override
+        public void writeRow(LoggableField[] fields, Row row) throws IOException
+        {
+            record(row);
+
+            long trigger = triggerNs.get();
+            if (trigger != IDLE && row.timeNs - trigger >= postTriggerNs)
+            {
+                dump(trigger - windowNs);
+                triggerNs.set(IDLE);
+            }
+        }
+
+        // When the ring is full the oldest row is overwritten.
+        private void record(Row row)
+        {
+            Row slot;
+            if (size < capacity)
+            {
+                slot = ring[(first + size) % capacity];
+                size++;
+            }
+            else
+            {
+                slot = ring[first];
+                first = (first + 1) % capacity;
+            }
+
+            slot.overlay = row.overlay;
+            slot.timeNs = row.timeNs;
+            for (int i = 0; i < fields.length; i++)
+            {
+                slot.carried[i] = false;
+                if (row.carried[i])
+                {
+                    slot.empty[i] = last.empty[i];
+                    slot.copyValue(last, i);
+                    continue;
+                }
+                slot.empty[i] = row.empty[i];
+                slot.copyValue(row, i);
+                if (!row.overlay)
+                {
+                    last.empty[i] = row.empty[i];
+                    last.copyValue(row, i);
+                }
+            }
+        }
+
+        // Writes out and forgets every recorded row sampled at or after fromNs.
+        private void dump(long fromNs) throws IOException
+        {
+            for (; size > 0; size--)
+            {
+                Row row = ring[first];
+                first = (first + 1) % capacity;
+                if (row.timeNs - fromNs >= 0)
+                {
+                    out.writeRow(fields, row);
+                    rowsWritten++;
+                }
+            }
+            first = 0;
+
+            // Dumps are rare and usually follow a fault, so make sure they survive one.
+            out.sync();
+        }
+
+        @Override
+        public long position()
+        {
+            return out.position();
+        }
+
+        @Override
+        public void sync() throws IOException
+        {
+            out.sync();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                long trigger = triggerNs.get();
+                if (trigger != IDLE)
+                {
+                    dump(trigger - windowNs);
+                }
+                else if (size > 0)
+                {
+                    Row newest = ring[(first + size - 1) % capacity];
+                    dump(newest.timeNs - windowNs);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+    }
+
+    /*
+     * Writes the log as a series of numbered segment files, opening the next
+     * one when the current segment is too big or too old. Closed segments are
+     * handed to a SegmentArchiver, so compression and deletion never hold up
+     * the thread writing rows.
+     */
+    private static class RotatingLogWriter implements LogWriter
+    {
+        private final Format format;
+        private final Backend backend;
+        private final String directory;
+        private final String filename;
+        private final String extension;
+        private final long maxSegmentBytes;
+        private final long maxSegmentMillis;
+        private final int indexRows;
+        private final WriterStats stats;
+        private final SegmentArchiver archiver;
+
+        private LoggableField[] fields;
+        private LogWriter segment;
+        private File segmentFile;
+        private int segmentIndex;
+        private long segmentStartMs;
+
+        public RotatingLogWriter(Format format, Backend backend, String directory, String filename, String extension,
+                                 long maxSegmentBytes, long maxSegmentMillis, boolean compress, long retentionBytes, int indexRows,
+                                 WriterStats stats)
+        {
+            this.format = format;
+            this.backend = backend;
+            this.directory = directory;
+            this.filename = filename;
+            this.extension = extension;
+            this.maxSegmentBytes = maxSegmentBytes;
+            this.maxSegmentMillis = maxSegmentMillis;
+            this.indexRows = indexRows;
+            this.stats = stats;
+
+            // Keep segments from earlier sessions: continue numbering after them,
+            // and count them towards the retention cap (oldest first).
+            TreeMap<Integer, File> existing = findSegments(new File(directory), filename, extension);
+            segmentIndex = existing.isEmpty() ? 0 : existing.lastKey() + 1;
+            archiver = new SegmentArchiver(existing.values(), compress, retentionBytes);
+        }
+
+        @Override
+        public void writeHeader(LoggableField[] fields) throws IOException
+        {
+            this.fields = fields;
+            openSegment();
+        }
+
+        @Override
+        public void writeRow(LoggableField[] fields, Row row) throws IOException
+        {
+            if ((maxSegmentBytes > 0 && segment.position() >= maxSegmentBytes)
+                    || (maxSegmentMillis > 0 && System.currentTimeMillis() - segmentStartMs >= maxSegmentMillis))
+            {
+                closeSegment();
+                openSegment();
+            }
+            segment.writeRow(fields, row);
+        }
+
+        @Override
+        public long position()
+        {
+            return segment.position();
+        }
+
+        @Override
+        public void sync() throws IOException
+        {
+            segment.sync();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                closeSegment();
+            }
+            finally
+            {
+                // Already-queued compression still runs; the thread exits afterwards.
+                archiver.shutdown();
+            }
+        }
+
+        private void openSegment() throws IOException
+        {
+            segmentFile = new File(directory, String.format("%s_%03d%s", filename, segmentIndex++, extension));
+            segment = openLogWriter(format, backend, segmentFile.getPath(), indexRows, stats);
+            segment.writeHeader(fields);
+            segmentStartMs = System.currentTimeMillis();
+        }
+
+        // A finished segment is forced to storage before the archiver reads or compresses it.
+        private void closeSegment() throws IOException
+        {
+            segment.sync();
+            segment.close();
+            archiver.segmentClosed(segmentFile);
+        }
+
+        private static TreeMap<Integer, File> findSegments(File dir, String filename, String extension)
+        {
+            TreeMap<Integer, File> segments = new TreeMap<>();
+            Pattern pattern = Pattern.compile(Pattern.quote(filename) + "_(\\d+)" + Pattern.quote(extension) + "(\\.gz)?");
+            File[] files = dir.listFiles();
+            if (files == null) return segments;
+
+            for (File file : files)
+            {
+                Matcher matcher = pattern.matcher(file.getName());
+                if (matcher.matches())
+                {
+                    segments.put(Integer.parseInt(matcher.group(1)), file);
+                }
+            }
+            return segments;
+        }
+    }
+
+    /*
+     * Compresses closed segments and enforces the retention cap on its own
+     * low-priority thread. segmentClosed() only queues the work, so the
+     * writer thread never waits for gzip or file deletion.
+     */
+    private static class SegmentArchiver
+    {
+        private final boolean compress;
+        private final long retentionBytes;
+        private final ExecutorService executor;
+
+        // Closed segments, oldest first. Only touched on the executor thread.
+        private final ArrayDeque<File> closedSegments = new ArrayDeque<>();
+        private long closedBytes;
+
+        public SegmentArchiver(Iterable<File> existingSegments, boolean compress, long retentionBytes)
+        {
+            this.compress = compress;
+            this.retentionBytes = retentionBytes;
+
+            for (File file : existingSegments)
+            {
+                closedSegments.add(file);
+                closedBytes += file.length();
+            }
+
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "Datalogger-archiver");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+
+        public void segmentClosed(final File segment)
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    File archived = compress ? gzip(segment) : segment;
+                    closedSegments.add(archived);
+                    closedBytes += archived.length();
+                    enforceRetention();
+                }
+            });
+        }
+
+        public void shutdown()
+        {
+            executor.shutdown();
+        }
+
+        private void enforceRetention()
+        {
+            if (retentionBytes <= 0) return;
+
+            while (closedBytes > retentionBytes && !closedSegments.isEmpty())
+            {
+                File oldest = closedSegments.removeFirst();
+                closedBytes -= oldest.length();
+                if (!oldest.delete())
+                {
+                    System.err.println("Datalogger: unable to delete old segment " + oldest);
+                }
+                new File(oldest.getPath() + INDEX_EXTENSION).delete(); // its index, if any
+            }
+        }
+
+        // Returns the compressed file, or the original if compression failed.
+        private static File gzip(File segment)
+        {
+            File compressed = new File(segment.getPath() + ".gz");
+            byte[] buffer = new byte[65536];
+
+            try (InputStream in = new FileInputStream(segment);
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed), 65536))
+            {
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                {
+                    out.write(buffer, 0, n);
+                }
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                compressed.delete();
+                return segment;
+            }
+
+            segment.delete();
+            return compressed;
+        }
+    }
+
+    /*
+     * Keeps the sidecar index of one log file (see Builder.setIndex()).
+     * Every blockRows rows it appends one fixed-size entry, so a reader can
+     * find the blocks covering a time range, seek straight to the first,
+     * and skip blocks whose min/max rule out a filter. Read by
+     * tools/DatalogIndex.java. All numbers are little-endian.
+     *
+     * Header:
+     *   "DIDX", u8 version, u8 ColumnType code of the time column,
+     *   i32 rows per block, u16 column count, then one u8 per column:
+     *   1 if its entries hold a min/max (numeric columns), else 0
+     *
+     * Then one entry per block:
+     *   i64 byte offset of the block's first row, i32 rows, i64 earliest
+     *   and latest time in microseconds, then f64 min and max of each
+     *   summarized column (NaN if no row in the block has a value)
+     *
+     * The time is the first column, the auto timestamp. A binary log
+     * redefines its strings in each block, so reading can start at any
+     * entry's offset. Entries reach the file when the log is synced or
+     * closed; rows after the last entry are still found by scanning.
+     */
+    private static class IndexedLogWriter implements LogWriter
+    {
+        static final byte[] MAGIC = {'D', 'I', 'D', 'X'};
+        static final int VERSION = 1;
+
+        private final LogWriter file;
+        private final Output index;
+        private final int blockRows;
+        private ByteBuffer buffer;
+
+        private boolean timeInMillis;
+        private int[] summarized;
+        private ColumnType[] types;
+
+        // Each column's value on the latest regular row, for carried cells.
+        private double[] last;
+
+        // The block being filled.
+        private long blockOffset;
+        private int rows;
+        private long minTimeUs;
+        private long maxTimeUs;
+        private double[] min;
+        private double[] max;
+
+        public IndexedLogWriter(LogWriter file, Output index, int blockRows)
+        {
+            this.file = file;
+            this.index = index;
+            this.blockRows = blockRows;
+        }
+
+        @Override
+        public void writeHeader(LoggableField[] fields) throws IOException
+        {
+            file.writeHeader(fields);
+
+            types = new ColumnType[fields.length];
+            int count = 0;
+            for (int i = 0; i < fields.length; i++)
+            {
+                types[i] = fields[i].getColumnType();
+                if (isNumeric(types[i])) count++;
+            }
+            summarized = new int[count];
+            count = 0;
+            for (int i = 0; i < fields.length; i++)
+            {
+                if (isNumeric(types[i])) summarized[count++] = i;
+            }
+            timeInMillis = types[0] == ColumnType.SECONDS;
+
+            last = new double[fields.length];
+            Arrays.fill(last, Double.NaN);
+            min = new double[count];
+            max = new double[count];
+
+            buffer = ByteBuffer.allocate(Math.max(12 + fields.length, 28 + 16 * count)).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(MAGIC);
+            buffer.put((byte) VERSION);
+            buffer.put((byte) types[0].code);
+            buffer.putInt(blockRows);
+            buffer.putShort((short) fields.length);
+            for (ColumnType type : types)
+            {
+                buffer.put((byte) (isNumeric(type) ? 1 : 0));
+            }
+            flushBuffer();
+        }
+
+        @Override
+        public void writeRow(LoggableField[] fields, Row row) throws IOException
+        {
+            if (rows == 0)
+            {
+                if (file instanceof BinaryLogWriter) ((BinaryLogWriter) file).startBlock();
+                blockOffset = file.position();
+                minTimeUs = Long.MAX_VALUE;
+                maxTimeUs = Long.MIN_VALUE;
+                Arrays.fill(min, Double.NaN);
+                Arrays.fill(max, Double.NaN);
+            }
+
+            file.writeRow(fields, row);
+
+            long timeUs = timeInMillis ? row.longs[0] * 1000 : row.longs[0];
+            minTimeUs = Math.min(minTimeUs, timeUs);
+            maxTimeUs = Math.max(maxTimeUs, timeUs);
+
+            for (int s = 0; s < summarized.length; s++)
+            {
+                int i = summarized[s];
+                double value;
+                if (row.carried[i])
+                {
+                    value = last[i];
+                }
+                else if (row.empty[i])
+                {
+                    continue;
+                }
+                else
+                {
+                    value = valueOf(types[i], row.longs[i]);
+                    if (!row.overlay) last[i] = value;
+                }
+
+                if (Double.isNaN(value)) continue;
+                if (Double.isNaN(min[s]) || value < min[s]) min[s] = value;
+                if (Double.isNaN(max[s]) || value > max[s]) max[s] = value;
+            }
+
+            if (++rows == blockRows)
+            {
+                writeEntry();
+            }
+        }
+
+        private void writeEntry() throws IOException
+        {
+            buffer.putLong(blockOffset);
+            buffer.putInt(rows);
+            buffer.putLong(minTimeUs);
+            buffer.putLong(maxTimeUs);
+            for (int s = 0; s < summarized.length; s++)
+            {
+                buffer.putDouble(min[s]);
+                buffer.putDouble(max[s]);
+            }
+            flushBuffer();
+            rows = 0;
+        }
+
+        private void flushBuffer() throws IOException
+        {
+            index.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+
+        private static boolean isNumeric(ColumnType type)
+        {
+            return type == ColumnType.DOUBLE || type == ColumnType.LONG || type == ColumnType.INT || type == ColumnType.SECONDS;
+        }
+
+        // The value as it reads in the CSV; SECONDS are stored as milliseconds.
+        private static double valueOf(ColumnType type, long bits)
+        {
+            switch (type)
+            {
+                case DOUBLE:
+                    return Double.longBitsToDouble(bits);
+                case SECONDS:
+                    return bits / 1000.0;
+                case INT:
+                    return (int) bits;
+                default:
+                    return bits;
+            }
+        }
+
+        @Override
+        public long position()
+        {
+            return file.position();
+        }
+
+        @Override
+        public void sync() throws IOException
+        {
+            file.sync();
+            index.sync();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                if (rows > 0) writeEntry();
+                file.close();
+            }
+            finally
+            {
+                index.close();
+            }
+        }
+    }
+
+    /*
+     * Writes every row to the log file and also, as CSV text, to the live
+     * stream (see Builder.setLiveStream()). The file decides position() and
+     * sync(); the stream never holds up the file.
+     */
+    private static class LiveStreamLogWriter implements LogWriter
+    {
+        private final LogWriter file;
+        private final LiveStream stream;
+        private final CsvLogWriter csv;
+
+        LiveStreamLogWriter(LogWriter file, LiveStream stream)
+        {
+            this.file = file;
+            this.stream = stream;
+            this.csv = new CsvLogWriter(stream);
+        }
+
+        @Override
+        public void writeHeader(LoggableField[] fields) throws IOException
+        {
+            file.writeHeader(fields);
+            csv.writeHeader(fields);
+            stream.start();
+        }
+
+        @Override
+        public void writeRow(LoggableField[] fields, Row row) throws IOException
+        {
+            file.writeRow(fields, row);
+            csv.writeRow(fields, row);
+        }
+
+        @Override
+        public long position()
+        {
+            return file.position();
+        }
+
+        @Override
+        public void sync() throws IOException
+        {
+            file.sync();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                file.close();
+            }
+            finally
+            {
+                stream.close();
+            }
+        }
+    }
+
+    /*
+     * Sends CSV lines to laptops on the robot's network, on its own thread.
+     *
+     * CsvLogWriter writes each line with a single write(), which only copies
+     * it into a bounded single-producer/single-consumer queue. If the network
+     * thread falls behind, new lines are dropped, never waited for. The
+     * network thread never waits either: a TCP client whose connection is
+     * backed up (a congested Wi-Fi link, a stalled laptop) keeps the unsent
+     * rest of its current line, and misses the lines after it until that
+     * rest has gone, so it only receives whole lines, except perhaps the
+     * last one if the log closes before that rest is sent. The first line,
+     * the header, is kept and sent to each client as it connects.
+     *
+     * TCP: clients connect to the port and receive a plain CSV stream.
+     * UDP: clients send any datagram to the port, and then receive one line
+     * per datagram; they must repeat it every few seconds to stay subscribed.
+     * Each of those keep-alives is answered with the header line again.
+     * tools/DatalogStreamClient.java is a reference client for both.
+     */
+    private static class LiveStream extends Thread implements Output
+    {
+        private static final long IDLE_PARK_NS = 2000000; // 2 ms
+        private static final long UDP_CLIENT_TIMEOUT_NS = 5000000000L;
+        private static final long CLOSE_TIMEOUT_MS = 1000;
+        private static final int MAX_CLIENTS = 8;
+
+        private final StreamProtocol protocol;
+        private final int port;
+
+        // Queue of lines from the writing thread; each slot grows to fit its longest line.
+        private final byte[][] lines;
+        private final int[] lengths;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+        private long cachedHead;
+        private volatile long droppedLines;
+        private volatile long clientDroppedLines; // lines clients missed; network thread
+
+        private byte[] header;
+        private long bytesWritten;
+        private volatile boolean running = true;
+
+        // Network thread only.
+        private ByteBuffer sendBuffer = ByteBuffer.allocateDirect(1024);
+        private ServerSocketChannel server;
+        private final ArrayList<SocketChannel> tcpClients = new ArrayList<>(); // changed under its lock, as close() reads it
+        private final ArrayList<ByteBuffer> tcpUnsent = new ArrayList<>();
+        private DatagramChannel udp;
+        private final ArrayList<SocketAddress> udpClients = new ArrayList<>();
+        private final ArrayList<Long> udpLastSeenNs = new ArrayList<>();
+        private final ByteBuffer receiveBuffer = ByteBuffer.allocate(64);
+
+        LiveStream(StreamProtocol protocol, int port, int capacity) throws IOException
+        {
+            super("Datalogger-stream");
+            setDaemon(true);
+            setPriority(Thread.MIN_PRIORITY);
+            this.protocol = protocol;
+            this.port = port;
+
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            lines = new byte[size][256];
+            lengths = new int[size];
+            mask = size - 1;
+
+            // Bind now, so a port that is already taken fails build() rather than the thread.
+            if (protocol == StreamProtocol.TCP)
+            {
+                server = ServerSocketChannel.open();
+                server.socket().setReuseAddress(true);
+                server.socket().bind(new InetSocketAddress(port));
+                server.configureBlocking(false);
+            }
+            else
+            {
+                udp = DatagramChannel.open();
+                udp.socket().setReuseAddress(true);
+                udp.socket().bind(new InetSocketAddress(port));
+                udp.configureBlocking(false);
+            }
+        }
+
+        // Writing thread: queues one line, or drops it if the queue is full.
+        @Override
+        public void write(byte[] bytes, int offset, int length)
+        {
+            bytesWritten += length;
+            if (header == null)
+            {
+                header = Arrays.copyOfRange(bytes, offset, offset + length);
+                return;
+            }
+
+            long t = tail.get();
+            if (t - cachedHead >= lines.length)
+            {
+                cachedHead = head.get();
+                if (t - cachedHead >= lines.length)
+                {
+                    droppedLines++;
+                    return;
+                }
+            }
+            int slot = (int) t & mask;
+            if (lines[slot].length < length)
+            {
+                lines[slot] = new byte[Math.max(length, lines[slot].length * 2)];
+            }
+            System.arraycopy(bytes, offset, lines[slot], 0, length);
+            lengths[slot] = length;
+            tail.lazySet(t + 1);
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void sync() {}
+
+        @Override
+        public long position()
+        {
+            return bytesWritten;
+        }
+
+        // Lines that were not sent: dropped from the queue, or missed by a backed-up or unreachable client.
+        long getDroppedLines()
+        {
+            return droppedLines + clientDroppedLines;
+        }
+
+        /*
+         * Sends what is already queued, then disconnects every client and
+         * frees the port, so the next OpMode can bind it again. Waits at most
+         * CLOSE_TIMEOUT_MS for the network thread.
+         */
+        @Override
+        public void close()
+        {
+            running = false;
+            LockSupport.unpark(this);
+            try
+            {
+                join(CLOSE_TIMEOUT_MS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            closeChannels();
+        }
+
+        // A network error only costs that client, or that pass for new clients; only close() ends the loop.
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    boolean keepRunning = running;
+
+                    acceptClients();
+                    long h = head.get();
+                    long t = tail.get();
+                    for (; h < t; h++)
+                    {
+                        int slot = (int) h & mask;
+                        send(lines[slot], lengths[slot]);
+                        head.lazySet(h + 1);
+                    }
+
+                    if (!keepRunning) break;
+
+                    LockSupport.parkNanos(this, IDLE_PARK_NS);
+                }
+            }
+            finally
+            {
+                closeChannels();
+            }
+        }
+
+        // Either thread; closing a channel twice does nothing.
+        private void closeChannels()
+        {
+            synchronized (tcpClients)
+            {
+                for (SocketChannel client : tcpClients)
+                {
+                    closeQuietly(client);
+                }
+            }
+            closeQuietly(server);
+            closeQuietly(udp);
+        }
+
+        // A failed accept or receive is tried again on the next pass.
+        private void acceptClients()
+        {
+            if (server != null)
+            {
+                try
+                {
+                    for (SocketChannel client = server.accept(); client != null; client = server.accept())
+                    {
+                        addTcpClient(client);
+                    }
+                }
+                catch (IOException e)
+                {
+                    // Try again next pass.
+                }
+                return;
+            }
+
+            long now = System.nanoTime();
+            try
+            {
+                receiveBuffer.clear();
+                for (SocketAddress from = udp.receive(receiveBuffer); from != null; from = udp.receive(receiveBuffer))
+                {
+                    receiveBuffer.clear();
+                    int known = udpClients.indexOf(from);
+                    if (known < 0)
+                    {
+                        if (udpClients.size() >= MAX_CLIENTS) continue;
+                        udpClients.add(from);
+                        udpLastSeenNs.add(now);
+                        known = udpClients.size() - 1;
+                    }
+                    udpLastSeenNs.set(known, now);
+                    // Resent on every keep-alive, in case the first one was lost.
+                    if (!sendUdp(from, header, header.length))
+                    {
+                        removeUdpClient(known);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // Try again next pass.
+            }
+            for (int i = udpClients.size() - 1; i >= 0; i--)
+            {
+                if (now - udpLastSeenNs.get(i) > UDP_CLIENT_TIMEOUT_NS)
+                {
+                    removeUdpClient(i);
+                }
+            }
+        }
+
+        private void addTcpClient(SocketChannel client)
+        {
+            if (tcpClients.size() >= MAX_CLIENTS)
+            {
+                closeQuietly(client);
+                return;
+            }
+            try
+            {
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+            }
+            catch (IOException e)
+            {
+                closeQuietly(client);
+                return;
+            }
+            synchronized (tcpClients)
+            {
+                tcpClients.add(client);
+                tcpUnsent.add(ByteBuffer.allocate(0));
+            }
+            if (!sendTcp(tcpClients.size() - 1, header, header.length))
+            {
+                closeClient(tcpClients.size() - 1);
+            }
+        }
+
+        private void send(byte[] line, int length)
+        {
+            for (int i = tcpClients.size() - 1; i >= 0; i--)
+            {
+                if (!sendTcp(i, line, length))
+                {
+                    closeClient(i);
+                }
+            }
+            for (int i = udpClients.size() - 1; i >= 0; i--)
+            {
+                if (!sendUdp(udpClients.get(i), line, length))
+                {
+                    clientDroppedLines++;
+                    removeUdpClient(i);
+                }
+            }
+        }
+
+        /*
+         * Sends a line to the i-th TCP client without waiting, or skips it if
+         * the rest of an earlier line still doesn't fit in the connection.
+         * Returns false if the client has gone away.
+         */
+        private boolean sendTcp(int i, byte[] bytes, int length)
+        {
+            SocketChannel client = tcpClients.get(i);
+            ByteBuffer unsent = tcpUnsent.get(i);
+            try
+            {
+                if (unsent.hasRemaining())
+                {
+                    client.write(unsent);
+                    if (unsent.hasRemaining())
+                    {
+                        clientDroppedLines++;
+                        return true;
+                    }
+                }
+
+                fill(bytes, length);
+                client.write(sendBuffer);
+                if (sendBuffer.hasRemaining())
+                {
+                    if (unsent.capacity() < sendBuffer.remaining())
+                    {
+                        unsent = ByteBuffer.allocate(Math.max(sendBuffer.remaining(), unsent.capacity() * 2));
+                        tcpUnsent.set(i, unsent);
+                    }
+                    unsent.clear();
+                    unsent.put(sendBuffer);
+                    unsent.flip();
+                }
+                return true;
+            }
+            catch (IOException e)
+            {
+                return false;
+            }
+        }
+
+        private void closeClient(int i)
+        {
+            synchronized (tcpClients)
+            {
+                closeQuietly(tcpClients.remove(i));
+                tcpUnsent.remove(i);
+            }
+        }
+
+        /*
+         * Datagrams that can't be sent right away are simply lost, like any
+         * other UDP packet. Returns false if sending failed, e.g. because the
+         * laptop has left the network; it is forgotten until it sends another
+         * keep-alive.
+         */
+        private boolean sendUdp(SocketAddress client, byte[] bytes, int length)
+        {
+            fill(bytes, length);
+            try
+            {
+                udp.send(sendBuffer, client);
+                return true;
+            }
+            catch (IOException e)
+            {
+                return false;
+            }
+        }
+
+        private void removeUdpClient(int i)
+        {
+            udpClients.remove(i);
+            udpLastSeenNs.remove(i);
+        }
+
+        private void fill(byte[] bytes, int length)
+        {
+            if (sendBuffer.capacity() < length)
+            {
+                sendBuffer = ByteBuffer.allocateDirect(Math.max(length, sendBuffer.capacity() * 2));
+            }
+            sendBuffer.clear();
+            sendBuffer.put(bytes, 0, length);
+            sendBuffer.flip();
+        }
+
+        private static void closeQuietly(Closeable closeable)
+        {
+            if (closeable == null) return;
+            try
+            {
+                closeable.close();
+            }
+            catch (IOException e)
+            {
+                // Already disconnected.
+            }
+        }
+    }
+
+    /*
+     * Destination for the bytes of a log file. Implementations buffer
+     * internally and are used by one thread at a time.
+     */
+    public interface Output
+    {
+        void write(byte[] bytes, int offset, int length) throws IOException;
+
+        // Hands buffered bytes to the operating system.
+        void flush() throws IOException;
+
+        // Flushes, then waits until the bytes are on the storage device.
+        void sync() throws IOException;
+
+        // Number of bytes written so far, including any still buffered.
+        long position();
+
+        void close() throws IOException;
+    }
+
+    // stats times every flush, sync and close of the output; null for files it doesn't count, such as the index.
+    private static Output openOutput(Backend backend, String filepath, WriterStats stats) throws IOException
+    {
+        File tmp = new File(filepath);
+        if (!tmp.exists())
+        {
+            tmp.getParentFile().mkdirs();
+        }
+
+        switch (backend)
+        {
+            case CHANNEL:
+                return new ChannelOutput(filepath, stats);
+            case MAPPED:
+                return new MappedOutput(filepath, stats);
+            default:
+                return new StreamOutput(filepath, stats);
+        }
+    }
+
+    private static void recordFlush(WriterStats stats, long startNs)
+    {
+        if (stats != null) stats.flushed(System.nanoTime() - startNs);
+    }
+
+    private static class StreamOutput implements Output
+    {
+        private final FileOutputStream fileOutputStream;
+        private final WriterStats stats;
+        private final byte[] buffer = new byte[65536];
+        private int count;
+        private long flushed;
+
+        public StreamOutput(String filepath, WriterStats stats) throws IOException
+        {
+            fileOutputStream = new FileOutputStream(filepath, false);
+            this.stats = stats;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            if (length > buffer.length - count)
+            {
+                flush();
+                if (length > buffer.length)
+                {
+                    long start = System.nanoTime();
+                    fileOutputStream.write(bytes, offset, length);
+                    flushed += length;
+                    recordFlush(stats, start);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, offset, buffer, count, length);
+            count += length;
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if (count > 0)
+            {
+                long start = System.nanoTime();
+                drain();
+                recordFlush(stats, start);
+            }
+        }
+
+        private void drain() throws IOException
+        {
+            if (count > 0)
+            {
+                fileOutputStream.write(buffer, 0, count);
+                flushed += count;
+                count = 0;
+            }
+        }
+
+        @Override
+        public void sync() throws IOException
+        {
+            long start = System.nanoTime();
+            drain();
+            fileOutputStream.getFD().sync();
+            recordFlush(stats, start);
+        }
+
+        @Override
+        public long position()
+        {
+            return flushed + count;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                drain();
+            }
+            finally
+            {
+                fileOutputStream.close();
+            }
+            recordFlush(stats, start);
+        }
+    }
+
+    private static class ChannelOutput implements Output
+    {
+        private final FileChannel channel;
+        private final WriterStats stats;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+        private long flushed;
+
+        public ChannelOutput(String filepath, WriterStats stats) throws IOException
+        {
+            channel = new FileOutputStream(filepath, false).getChannel();
+            this.stats = stats;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            while (length > 0)
+            {
+                if (!buffer.hasRemaining())
+                {
+                    flush();
+                }
+                int n = Math.min(length, buffer.remaining());
+                buffer.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if (buffer.position() > 0)
+            {
+                long start = System.nanoTime();
+                drain();
+                recordFlush(stats, start);
+            }
+        }
+
+        private void drain() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                flushed += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void sync() throws IOException
+        {
+            long start = System.nanoTime();
+            drain();
+            channel.force(false);
+            recordFlush(stats, start);
+        }
+
+        @Override
+        public long position()
+        {
+            return flushed + buffer.position();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                drain();
+            }
+            finally
+            {
+                channel.close();
+            }
+            recordFlush(stats, start);
+        }
+    }
+
+    /*
+     * Writes into a memory-mapped window of the file. Once the window is
+     * full the next REGION_SIZE bytes are mapped, which extends the file.
+     * On close the file is truncated to the bytes actually written.
+     *
+     * sync() forces the current window, then the whole file, which also
+     * writes back the windows already left behind: on Linux, and so on
+     * Android, mapped pages are file pages like any others. Forcing each
+     * window as it fills would cost logs that never sync().
+     */
+    private static class MappedOutput implements Output
+    {
+        private static final int REGION_SIZE = 4 * 1024 * 1024;
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final WriterStats stats;
+        private MappedByteBuffer region;
+        private long regionStart;
+
+        public MappedOutput(String filepath, WriterStats stats) throws IOException
+        {
+            this.stats = stats;
+            file = new RandomAccessFile(filepath, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            while (length > 0)
+            {
+                if (!region.hasRemaining())
+                {
+                    regionStart += region.position();
+                    region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+                }
+                int n = Math.min(length, region.remaining());
+                region.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        // Bytes in a mapping are already visible to the operating system.
+        @Override
+        public void flush() {}
+
+        @Override
+        public void sync() throws IOException
+        {
+            long start = System.nanoTime();
+            region.force();
+            channel.force(false);
+            recordFlush(stats, start);
+        }
+
+        @Override
+        public long position()
+        {
+            return regionStart + region.position();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                region.force();
+                channel.truncate(position());
+            }
+            finally
+            {
+                file.close();
+            }
+            recordFlush(stats, start);
         }
     }
 }
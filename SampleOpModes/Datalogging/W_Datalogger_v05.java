@@ -21,6 +21,18 @@
  
  
  
+ 10/16/2026  The same methods now run on a faster engine.  Each line is built
+ in one reused StringBuilder that keeps room at its start for the two
+ timestamps, so newLine() writes them in place instead of shifting the
+ whole line along.  Numbers are appended without creating a String each,
+ and lines are encoded into a reused byte buffer that goes to the file
+ 64 KB at a time.  new W_Datalogger_v05(fileName, true) does the file
+ writing on a background thread instead, so a slow SD card can't hold up
+ the OpMode's loop; as before, call closeDataLogger() when done, which
+ also stops that thread.  Write errors are now counted instead of ignored;
+ show getWriteErrors() and getDroppedLines() on telemetry.  The datalog file
+ itself is unchanged, so OpModes such as W_DL_OpMode_IMU_v05 work as before.
+
  1/6/2022   This v05 supports downloading the datalog file from OnBot Java,
  rather than file transfer via USB cable or wireless Android Debug Bridge (adb).
  The latter methods can still be used if needed.
@@ -64,7 +76,8 @@ some values (esp sensor values) should see discontinuities.
  with an equivalent class designed for use by a single thread, StringBuilder.
  The StringBuilder class should generally be used in preference to this one,
  as it supports all of the same operations but it is faster, as it performs
- no synchronization.
+ no synchronization.  This class now uses StringBuilder, so call its methods
+ from one thread only (normally the OpMode's).
 
 
  Credit to Olavi Kamppari, who shared a more advanced version dated 9/9/2015.
@@ -74,23 +87,58 @@ some values (esp sensor values) should see discontinuities.
 package org.firstinspires.ftc.teamcode;
 
 import java.io.File;                    // already used in FTC SDK
-import java.io.Writer;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.FileWriter;              // subclass of java.io.Writer
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class W_Datalogger_v05 {
     
+    // Room kept at the start of each line for the two timestamps, so they
+    // can be written in place just before the data fields.
+    private static final int TIME_ROOM = 48;
+
+    // Bytes held in memory before each write to the file (a power of two).
+    private static final int BUFFER_SIZE = 65536;
+
     // Declare members.
-    private Writer writer;              // contains write() method to store file
-    private StringBuffer lineBuffer;    // its methods build each line (row) of data
+    private FileOutputStream file;      // stores the file; null if it could not be created
+    private final StringBuilder lineBuffer = new StringBuilder(256);   // builds each line (row) of data
     private long timeBase;              // time of instantiation (milliseconds)
     private long nsBase;                // time of reset (nanoseconds)    
+    private final StringBuilder timeBuffer = new StringBuilder(32);    // reused for timestamps
+    private byte[] lineBytes = new byte[512];   // reused for each line, encoded as UTF-8
+
+    private final byte[] outBuffer;     // bytes not yet written to the file; null if async
+    private int outLength;
+    private final AsyncWriter asyncWriter;  // background file writer, or null
+
+    // Error counters, instead of ignoring errors; see getWriteErrors().
+    private volatile int writeErrors;
+    private volatile IOException lastError;
+    private volatile long droppedLines;
+    private boolean closed;
 
     // This constructor runs once, to initialize an instantiation of the class.
     public W_Datalogger_v05 (String fileName) {
+        this(fileName, false);
+    }
+
+    // With async set to true, a background thread writes the lines to the
+    // file, so newLine() never waits for the SD card.  If that thread falls
+    // 64 KB behind, new lines are dropped and counted (getDroppedLines()).
+    // Call closeDataLogger() when done: until then the thread keeps running
+    // and the last lines stay in memory.  A forgotten datalogger is only
+    // closed whenever Java garbage collects it, which may be much later.
+    public W_Datalogger_v05 (String fileName, boolean async) {
+        this("/sdcard/FIRST/java/src/Datalogs", fileName, async);
+    }
+
+    // Same, but the file goes in another folder instead of Datalogs.  The
+    // desktop benchmarks use this, as a laptop has no /sdcard folder.
+    public W_Datalogger_v05 (String directoryPath, String fileName, boolean async) {
         
         // Build the path with the filename provided by the calling OpMode.
-        String directoryPath    = "/sdcard/FIRST/java/src/Datalogs";
         String filePath         = directoryPath + "/" + fileName + ".txt";
         
         // src and any subfolder contents appear in OnBot Java (left side).
@@ -98,13 +146,26 @@ public class W_Datalogger_v05 {
         
         new File(directoryPath).mkdir();  // create Datalogs folder if needed
         
-        // Set up the file writer and line buffer.
+        // Set up the file.  If that fails, the OpMode keeps running, but
+        // every line is dropped; getWriteErrors() shows it.
         try {
-            writer = new FileWriter(filePath);
-            lineBuffer = new StringBuffer(128);     // initial length 128
+            file = new FileOutputStream(filePath);
         }
         catch (IOException e) {
+            countError(e);
+        }
+
+        if (async && file != null) {
+            outBuffer = null;
+            asyncWriter = new AsyncWriter(file);
+            asyncWriter.thread.start();
+        }
+        else {
+            outBuffer = new byte[BUFFER_SIZE];
+            asyncWriter = null;
         }
+
+        lineBuffer.setLength(TIME_ROOM);    // the room for timestamps; not part of the file
         
         timeBase = System.currentTimeMillis();
         nsBase = System.nanoTime();
@@ -115,22 +176,107 @@ public class W_Datalogger_v05 {
 
 
     // This *private* method is called by the *public* methods firstLine()
-    // and newLine().
-    private void flushLineBuffer(){
+    // and newLine().  The line (row) runs from `start` to the end of the
+    // line buffer.
+    private void flushLineBuffer(int start){
 
-        try {
-            lineBuffer.append('\n');                // end-of-line character
-            writer.write(lineBuffer.toString());    // add line (row) to file
-            lineBuffer.setLength(0);                // clear the line (row)
+        int length = encodeLine(start);
+        lineBuffer.setLength(TIME_ROOM);        // clear the line (row)
+
+        if (file == null) {
+            droppedLines++;
         }
-        catch (IOException e) {
+        else if (asyncWriter != null) {
+            if (!asyncWriter.add(lineBytes, length)) {
+                droppedLines++;
+            }
+        }
+        else {
+            if (length > outBuffer.length - outLength) {
+                flushOutBuffer();
+            }
+            if (length > outBuffer.length) {
+                writeToFile(lineBytes, 0, length);  // a line longer than the whole buffer
+            }
+            else {
+                System.arraycopy(lineBytes, 0, outBuffer, outLength, length);
+                outLength += length;
+            }
         }
         
     }   // end flushLineBuffer() method
+
+
+    // Encodes the line as UTF-8 into lineBytes, ending it with '\n', the same
+    // bytes FileWriter produced on the robot, and returns the length.
+    private int encodeLine(int start){
+
+        int length = lineBuffer.length();
+        if (lineBytes.length < (length - start) * 3 + 1) {
+            lineBytes = new byte[Math.max((length - start) * 3 + 1, lineBytes.length * 2)];
+        }
+
+        int n = 0;
+        for (int i = start; i < length; i++) {
+            char c = lineBuffer.charAt(i);
+            if (c < 0x80) {
+                lineBytes[n++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                lineBytes[n++] = (byte) (0xc0 | (c >> 6));
+                lineBytes[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(lineBuffer.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, lineBuffer.charAt(++i));
+                lineBytes[n++] = (byte) (0xf0 | (cp >> 18));
+                lineBytes[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                lineBytes[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                lineBytes[n++] = (byte) (0x80 | (cp & 0x3f));
+            }
+            else if (Character.isSurrogate(c)) {
+                lineBytes[n++] = '?';       // unpaired surrogate, as FileWriter wrote it
+            }
+            else {
+                lineBytes[n++] = (byte) (0xe0 | (c >> 12));
+                lineBytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                lineBytes[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        lineBytes[n++] = '\n';                 // end-of-line character
+        return n;
+
+    }   // end encodeLine() method
+
+
+    private void flushOutBuffer(){
+        if (outLength > 0) {
+            writeToFile(outBuffer, 0, outLength);
+            outLength = 0;
+        }
+    }
+
+    // Called by the OpMode's thread; the AsyncWriter has its own.
+    private void writeToFile(byte[] bytes, int offset, int length){
+        try {
+            file.write(bytes, offset, length);
+        }
+        catch (IOException e) {
+            countError(e);
+        }
+    }
+
+    private void countError(IOException e){
+        if (writeErrors == 0) {
+            e.printStackTrace();            // the first one shows up in the robot log
+        }
+        lastError = e;
+        writeErrors++;
+    }
     
 
     // This *private* method is called by the *public* method newLine().
-    private void insertTimestamps(){
+    // It returns where the line (row) now starts.
+    private int insertTimestamps(){
         
         long milliTime,nanoTime;
 
@@ -138,11 +284,13 @@ public class W_Datalogger_v05 {
         milliTime   = System.currentTimeMillis();
         nanoTime    = System.nanoTime();
 
-        // Insert timestamps at position 0, *before* the OpMode data fields.
-        lineBuffer.insert
-            
-            (0, String.format("%.3f",(milliTime - timeBase) / 1000.0) + ','
-              + String.format("%.3f",(nanoTime - nsBase) / 1.0E6) + ',');
+        // Format both timestamps without creating new String objects.
+        // CsvNumberEncoder gives the same text as String.format("%.3f", ...).
+        timeBuffer.setLength(0);
+        CsvNumberEncoder.appendFixed(timeBuffer, (milliTime - timeBase) / 1000.0, 3);
+        timeBuffer.append(',');
+        CsvNumberEncoder.appendFixed(timeBuffer, (nanoTime - nsBase) / 1.0E6, 3);
+        timeBuffer.append(',');
 
         // Divide milliseconds by 1,000 to log seconds, in field named "Time".
         // Divide nanoseconds by 1,000,000 to log milliseconds, in "d ms".
@@ -152,19 +300,31 @@ public class W_Datalogger_v05 {
 
         nsBase      = nanoTime;         // reset for incremental time delta
 
+        // Copy the timestamps into the end of the room kept for them, *before*
+        // the OpMode data fields.  Unlike inserting them at position 0, this
+        // does not move the rest of the line.
+        int start = TIME_ROOM - timeBuffer.length();
+        if (start < 0) {
+            lineBuffer.insert(TIME_ROOM, timeBuffer);   // only for absurdly long times
+            return TIME_ROOM;
+        }
+        for (int i = 0; i < timeBuffer.length(); i++) {
+            lineBuffer.setCharAt(start + i, timeBuffer.charAt(i));
+        }
+        return start;
+
     }   // end insertTimestamps() method
     
 
     // The OpMode calls this *public* method to complete the first row (labels).
     public void firstLine() {
-        flushLineBuffer();
+        flushLineBuffer(TIME_ROOM);
     }
 
     // The OpMode calls this *public* method to add timestamps and complete the
     // current line (row) of data.
     public void newLine() {
-        insertTimestamps();
-        flushLineBuffer();
+        flushLineBuffer(insertTimestamps());
     }
     
     
@@ -172,17 +332,19 @@ public class W_Datalogger_v05 {
     // preceded by a comma.  This creates the comma-separated values (CSV).
     
     public void addField(String s) {
-        if (lineBuffer.length()>0) {
-            lineBuffer.append(',');
-        }
+        addComma();
         lineBuffer.append(s);
     }
 
     public void addField(char c) {
-        if (lineBuffer.length()>0) {
+        addComma();
+        lineBuffer.append(c);
+    }
+
+    private void addComma() {
+        if (lineBuffer.length() > TIME_ROOM) {
             lineBuffer.append(',');
         }
-        lineBuffer.append(c);
     }
     // Checking the line length (before inserting a comma) is not needed when a 
     // default timestamp (and its comma) will be inserted before all data, as in
@@ -196,28 +358,34 @@ public class W_Datalogger_v05 {
         addField(b ? '1' : '0');
     }
 
-    // These (overloaded) methods accept various numeric types,
-    // all converted to type String for the method listed above.
+    // These (overloaded) methods accept various numeric types.  Appending a
+    // number straight to the line gives the same text as Long.toString(),
+    // Double.toString() etc., without creating a String object each time.
     // Spreadsheet programs typically interpret these correctly as numbers.
 
     public void addField(byte b) {
-        addField(Byte.toString(b));
+        addComma();
+        lineBuffer.append(b);
     }
 
     public void addField(short s) {
-        addField(Short.toString(s));
+        addComma();
+        lineBuffer.append(s);
     }
 
     public void addField(long l) {
-        addField(Long.toString(l));
+        addComma();
+        lineBuffer.append(l);
     }
 
     public void addField(float f) {
-        addField(Float.toString(f));
+        addComma();
+        lineBuffer.append(f);
     }
 
     public void addField(double d) {
-        addField(Double.toString(d));
+        addComma();
+        lineBuffer.append(d);
     }
 
     // Any 'int' values are processed as 'long', through Java's implicit
@@ -231,12 +399,50 @@ public class W_Datalogger_v05 {
     }
 
 
+    // Number of times creating or writing the file failed.  Anything but 0
+    // means lines are missing from the log; getLastError() says why.
+    public int getWriteErrors() {
+        return asyncWriter == null ? writeErrors : writeErrors + asyncWriter.writeErrors;
+    }
+
+    // The most recent of those errors, or null.  With async, the file is
+    // only written on the background thread until closeDataLogger() closes
+    // it, so an error of this class's own is the later one.
+    public IOException getLastError() {
+        if (lastError != null || asyncWriter == null) {
+            return lastError;
+        }
+        return asyncWriter.lastError;
+    }
+
+    // Number of lines that never reached the file, because it could not be
+    // created or (with async) the background thread was too far behind.
+    public long getDroppedLines() {
+        return droppedLines;
+    }
+
+
     // The OpMode must call this method when finished logging data.
     public void closeDataLogger() {
-        try {
-            writer.close();             // close the file
+        if (closed) {
+            return;
         }
-        catch (IOException e) {
+        closed = true;
+
+        if (asyncWriter != null) {
+            asyncWriter.finish();       // writes every line added so far
+        }
+        else if (file != null) {
+            flushOutBuffer();
+        }
+
+        if (file != null) {
+            try {
+                file.close();           // close the file
+            }
+            catch (IOException e) {
+                countError(e);
+            }
         }
     }
 
@@ -247,5 +453,100 @@ public class W_Datalogger_v05 {
         closeDataLogger();
         super.finalize();
     }
+
+
+    // With async, the OpMode's thread copies each line into this ring of
+    // bytes, and a background thread writes them to the file.  Each side
+    // only moves its own end of the ring, so neither ever waits for a lock.
+    // It is static and holds only the file, not the datalogger: its running
+    // thread would otherwise keep a forgotten datalogger from ever being
+    // garbage collected, so finalize() could never close it.
+    private static class AsyncWriter implements Runnable {
+
+        private static final long IDLE_PARK_NS = 2000000;   // 2 ms
+
+        private final FileOutputStream file;
+        private final byte[] ring = new byte[BUFFER_SIZE];
+        private final AtomicLong head = new AtomicLong();   // bytes written to the file
+        private final AtomicLong tail = new AtomicLong();   // bytes added by the OpMode
+        private final Thread thread = new Thread(this, "W_Datalogger writer");
+        private volatile boolean running = true;
+
+        // Errors on this thread, added to the datalogger's own by getWriteErrors().
+        private volatile int writeErrors;
+        private volatile IOException lastError;
+
+        AsyncWriter(FileOutputStream file) {
+            this.file = file;
+            thread.setDaemon(true);
+        }
+
+        // OpMode thread: adds one line, or returns false if there is no room.
+        boolean add(byte[] bytes, int length) {
+            long t = tail.get();
+            long used = t - head.get();
+            if (length > ring.length - used) {
+                return false;
+            }
+            int at = (int) t & (ring.length - 1);
+            int first = Math.min(length, ring.length - at);
+            System.arraycopy(bytes, 0, ring, at, first);
+            System.arraycopy(bytes, first, ring, 0, length - first);
+            tail.lazySet(t + length);
+
+            // Wake the writer early if lines are coming in faster than it naps.
+            if (used < ring.length / 2 && used + length >= ring.length / 2) {
+                LockSupport.unpark(thread);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                // Read the flag first, so lines added before finish() are still written.
+                boolean keepRunning = running;
+
+                long h = head.get();
+                long t = tail.get();
+                if (t != h) {
+                    int at = (int) h & (ring.length - 1);
+                    int length = (int) Math.min(t - h, ring.length - at);
+                    write(at, length);
+                    head.lazySet(h + length);
+                    continue;
+                }
+                if (!keepRunning) {
+                    return;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NS);
+            }
+        }
+
+        private void write(int offset, int length) {
+            try {
+                file.write(ring, offset, length);
+            }
+            catch (IOException e) {
+                if (writeErrors == 0) {
+                    e.printStackTrace();    // the first one shows up in the robot log
+                }
+                lastError = e;
+                writeErrors++;
+            }
+        }
+
+        // Returns once every line added so far has been written.
+        void finish() {
+            running = false;
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
     
 }   // end class
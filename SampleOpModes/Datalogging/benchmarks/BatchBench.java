@@ -0,0 +1,118 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.robotcore.internal.opmode.OpModeManagerImpl;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/*
+ * Logs bursts of IMU FIFO samples (6 columns plus a microsecond timestamp,
+ * 32 samples per burst) three ways: GenericField.set() and writeLine() per
+ * sample, DoubleField.set() and writeLine() per sample, and one
+ * Batch.writeLines() per burst. Reports the CPU time and heap allocation of
+ * the logging thread per sample, for a synchronous BINARY log and for an
+ * async log where the writer thread does the I/O.
+ *
+ * Usage: BatchBench [samples] [directory]
+ */
+public class BatchBench
+{
+    private static final int COLUMNS = 6;
+    private static final int BURST = 32;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args)
+    {
+        int samples = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"), "datalog-bench");
+        dir.mkdirs();
+        samples -= samples % BURST;
+
+        // The first pass warms up the JIT; only the second is reported.
+        for (int pass = 0; pass < 2; pass++)
+        {
+            boolean report = pass == 1;
+            for (boolean async : new boolean[] {false, true})
+            {
+                for (int mode = 0; mode < 3; mode++)
+                {
+                    run(dir, mode, async, samples, report);
+                }
+            }
+        }
+    }
+
+    private static void run(File dir, int mode, boolean async, int samples, boolean report)
+    {
+        Datalogger.GenericField[] generic = new Datalogger.GenericField[COLUMNS];
+        Datalogger.DoubleField[] doubles = new Datalogger.DoubleField[COLUMNS];
+        Datalogger.LoggableField[] fields = new Datalogger.LoggableField[COLUMNS];
+        for (int i = 0; i < COLUMNS; i++)
+        {
+            generic[i] = new Datalogger.GenericField("Axis " + i);
+            doubles[i] = new Datalogger.DoubleField("Axis " + i, 4);
+            fields[i] = mode == 0 ? generic[i] : doubles[i];
+        }
+
+        Datalogger datalogger = new Datalogger.Builder()
+                .setDirectory(dir.getPath())
+                .setFilename("batch")
+                .setAutoTimestamp(Datalogger.AutoTimestamp.MICROSECONDS)
+                .setFormat(Datalogger.Format.BINARY)
+                .setAsync(async ? samples + 1 : 0) // room for every sample, so none are dropped
+                .setFields(fields)
+                .build();
+
+        double[][] fifo = new double[COLUMNS][BURST];
+        long[] sampleTimesNs = new long[BURST];
+        Datalogger.Batch batch = datalogger.newBatch();
+        for (int i = 0; i < COLUMNS && mode == 2; i++)
+        {
+            batch.setColumn(doubles[i], fifo[i]);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long cpuBefore = THREADS.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        for (int burst = 0; burst < samples / BURST; burst++)
+        {
+            // Stands in for reading the sensor's FIFO.
+            for (int r = 0; r < BURST; r++)
+            {
+                int sample = burst * BURST + r;
+                sampleTimesNs[r] = start + sample * 1000000L;
+                for (int i = 0; i < COLUMNS; i++)
+                {
+                    fifo[i][r] = sample * 0.001 + i;
+                }
+            }
+
+            if (mode == 2)
+            {
+                batch.writeLines(BURST, sampleTimesNs);
+                continue;
+            }
+            for (int r = 0; r < BURST; r++)
+            {
+                for (int i = 0; i < COLUMNS; i++)
+                {
+                    if (mode == 0) generic[i].set(fifo[i][r]);
+                    else doubles[i].set(fifo[i][r]);
+                }
+                datalogger.writeLine();
+            }
+        }
+        long cpu = THREADS.getCurrentThreadCpuTime() - cpuBefore;
+        long bytes = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+        OpModeManagerImpl.stopOpMode();
+
+        if (!report) return;
+        String name = mode == 0 ? "GenericField + writeLine" : mode == 1 ? "DoubleField + writeLine" : "Batch.writeLines";
+        System.out.printf("%-5s %-26s %8.1f ns/sample %8.2f B/sample %6d dropped%n",
+                async ? "async" : "sync", name, (double) cpu / samples, (double) bytes / samples,
+                datalogger.getDroppedRows());
+    }
+}
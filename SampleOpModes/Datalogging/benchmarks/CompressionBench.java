@@ -0,0 +1,136 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.robotcore.internal.opmode.OpModeManagerImpl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Compares file size and writeLine() time of the CSV, BINARY and COMPRESSED
+ * formats on rows shaped like a drivetrain log: microsecond timestamp, IMU
+ * angles (floats with sensor noise), four encoder counts, motor power, a
+ * limit switch and a state string. The CSV file gzipped afterwards is shown
+ * for reference; that is what setCompressSegments() would produce.
+ *
+ * Usage: CompressionBench [rows] [directory]
+ */
+public class CompressionBench
+{
+    public static void main(String[] args) throws IOException
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"), "datalog-bench");
+        dir.mkdirs();
+
+        // The first pass warms up the JIT; only the second is reported.
+        for (int pass = 0; pass < 2; pass++)
+        {
+            boolean report = pass == 1;
+            for (Datalogger.Format format : Datalogger.Format.values())
+            {
+                run(dir, format, rows, report);
+            }
+            if (report)
+            {
+                File csv = new File(dir, "compression_csv.txt");
+                print("CSV + gzip", 0, rows, gzippedLength(csv));
+            }
+        }
+    }
+
+    private static void run(File dir, Datalogger.Format format, int rows, boolean report)
+    {
+        Datalogger.DoubleField yaw = new Datalogger.DoubleField("Yaw", 2);
+        Datalogger.DoubleField pitch = new Datalogger.DoubleField("Pitch", 2);
+        Datalogger.DoubleField roll = new Datalogger.DoubleField("Roll", 2);
+        Datalogger.LongField[] encoders = new Datalogger.LongField[4];
+        for (int i = 0; i < encoders.length; i++)
+        {
+            encoders[i] = new Datalogger.LongField("Encoder " + i);
+        }
+        Datalogger.DoubleField power = new Datalogger.DoubleField("Power", 3);
+        Datalogger.BooleanField limit = new Datalogger.BooleanField("Limit");
+        Datalogger.GenericField state = new Datalogger.GenericField("State");
+
+        String filename = "compression_" + format.name().toLowerCase();
+        Datalogger datalogger = new Datalogger.Builder()
+                .setDirectory(dir.getPath())
+                .setFilename(filename)
+                .setAutoTimestamp(Datalogger.AutoTimestamp.MICROSECONDS)
+                .setFormat(format)
+                .setFields(yaw, pitch, roll, encoders[0], encoders[1], encoders[2], encoders[3], power, limit, state)
+                .build();
+
+        Random random = new Random(1);
+        long[] counts = new long[encoders.length];
+        long busy = 0;
+        for (int row = 0; row < rows; row++)
+        {
+            double t = row * 0.005;
+            yaw.set((float) (Math.sin(t * 0.3) * 90 + random.nextGaussian() * 0.05));
+            pitch.set((float) (random.nextGaussian() * 0.2));
+            roll.set((float) (random.nextGaussian() * 0.2));
+            for (int i = 0; i < counts.length; i++)
+            {
+                counts[i] += 12 + random.nextInt(3);
+                encoders[i].set(counts[i]);
+            }
+            power.set(Math.round(Math.cos(t * 0.3) * 1000) / 1000.0);
+            limit.set((row / 4000) % 2 == 1);
+            state.set((row / 2000) % 3 == 0 ? "DRIVE" : (row / 2000) % 3 == 1 ? "TURN" : "INTAKE");
+
+            long t0 = System.nanoTime();
+            datalogger.writeLine();
+            busy += System.nanoTime() - t0;
+        }
+        OpModeManagerImpl.stopOpMode();
+
+        if (!report) return;
+        File file = new File(dir, filename + (format == Datalogger.Format.CSV ? ".txt" : ".dlog"));
+        print(format.name(), busy, rows, file.length());
+    }
+
+    private static long gzippedLength(File file) throws IOException
+    {
+        CountingOutputStream counter = new CountingOutputStream();
+        try (InputStream in = new FileInputStream(file);
+             GZIPOutputStream gzip = new GZIPOutputStream(counter, 65536))
+        {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                gzip.write(buffer, 0, n);
+            }
+        }
+        return counter.count;
+    }
+
+    private static void print(String name, long busyNs, int rows, long bytes)
+    {
+        String time = busyNs > 0 ? String.format("%7.1f ns/row", (double) busyNs / rows) : "              ";
+        System.out.printf("%-12s %s %7.2f bytes/row %10d bytes%n", name, time, (double) bytes / rows, bytes);
+    }
+
+    private static class CountingOutputStream extends OutputStream
+    {
+        long count;
+
+        @Override
+        public void write(int b)
+        {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.robotcore.internal.opmode.OpModeManagerImpl;
+
+import java.io.File;
+
+/*
+ * Measures the throughput cost of Builder.setSyncPolicy(). Each policy logs
+ * the same CSV rows twice: synchronously, where writeLine() waits for every
+ * sync, and async at a fixed loop rate, where the writer thread syncs in
+ * groups and the OpMode only sees dropped rows if the writer falls behind.
+ *
+ * Results depend almost entirely on the storage device; run it on the
+ * device you care about (see benchmarks/README.md).
+ *
+ * Usage: DurabilityBench [rows] [directory]
+ */
+public class DurabilityBench
+{
+    private static final int FIELDS = 10;
+    private static final int ASYNC_RATE_HZ = 1000;
+
+    // {periodMs, lines}; {0, 0} is the default, sync only on close.
+    private static final long[][] POLICIES = {
+            {0, 0}, {1000, 0}, {100, 0}, {10, 0}, {0, 100}, {0, 1}
+    };
+
+    public static void main(String[] args)
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"), "datalog-bench");
+        dir.mkdirs();
+
+        // The first pass warms up the JIT; only the second is reported.
+        for (int pass = 0; pass < 2; pass++)
+        {
+            boolean report = pass == 1;
+            for (long[] policy : POLICIES)
+            {
+                run(dir, policy[0], (int) policy[1], false, rows, report);
+                run(dir, policy[0], (int) policy[1], true, rows / 10, report);
+            }
+        }
+    }
+
+    private static void run(File dir, long periodMs, int lines, boolean async, int rows, boolean report)
+    {
+        Datalogger.DoubleField[] fields = new Datalogger.DoubleField[FIELDS];
+        for (int i = 0; i < FIELDS; i++)
+        {
+            fields[i] = new Datalogger.DoubleField("Field " + i);
+        }
+
+        Datalogger datalogger = new Datalogger.Builder()
+                .setDirectory(dir.getPath())
+                .setFilename("durability")
+                .setAutoTimestamp(Datalogger.AutoTimestamp.DECIMAL_SECONDS)
+                .setAsync(async ? 4096 : 0)
+                .setSyncPolicy(periodMs, lines)
+                .setFields(fields)
+                .build();
+
+        long periodNs = 1000000000L / ASYNC_RATE_HZ;
+        long start = System.nanoTime();
+        long busy = 0;
+        for (int row = 0; row < rows; row++)
+        {
+            if (async)
+            {
+                // Pace the loop like an OpMode; only time spent in writeLine() counts.
+                while (System.nanoTime() - start < row * periodNs) Thread.yield();
+            }
+            long t0 = System.nanoTime();
+            for (int i = 0; i < FIELDS; i++)
+            {
+                fields[i].set(row * 0.001 + i);
+            }
+            datalogger.writeLine();
+            busy += System.nanoTime() - t0;
+        }
+        OpModeManagerImpl.stopOpMode();
+
+        if (!report) return;
+        String policy = periodMs == 0 && lines == 0 ? "close only"
+                : periodMs > 0 ? "every " + periodMs + " ms" : "every " + lines + " lines";
+        System.out.printf("%-5s %-16s %9.1f ns/row %6d syncs %8.1f ms max unsynced %5d dropped%n",
+                async ? "async" : "sync", policy, (double) busy / rows, datalogger.getSyncCount(),
+                datalogger.getMaxUnsyncedMillis(), datalogger.getDroppedRows());
+    }
+}
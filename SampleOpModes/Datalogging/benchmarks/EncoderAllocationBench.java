@@ -0,0 +1,128 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.robotcore.internal.opmode.OpModeManagerImpl;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+
+/*
+ * Measures time and heap allocation per logged row for the old
+ * String.format/DecimalFormat text path, CsvNumberEncoder, and a full
+ * Datalogger.writeLine() with typed fields.
+ *
+ * Runs on a desktop JVM (HotSpot) with the SDK stand-ins in benchmarks/stubs;
+ * see benchmarks/README.md. Allocation is read from the per-thread counter,
+ * so the numbers cover only the logging thread.
+ */
+public class EncoderAllocationBench
+{
+    private static final int FIELDS = 10;
+    private static final int WARMUP_ROWS = 200000;
+    private static final int ROWS = 1000000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static int sink;
+
+    public static void main(String[] args) throws Exception
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "datalog-bench");
+
+        for (int pass = 0; pass < 2; pass++)
+        {
+            boolean report = pass == 1;
+            run("String.format + DecimalFormat", report, new Runnable() {
+                final DecimalFormat timeFmt = new DecimalFormat("000.000");
+                final StringBuilder out = new StringBuilder(256);
+                long row;
+
+                @Override
+                public void run()
+                {
+                    out.setLength(0);
+                    out.append(timeFmt.format(row / 1000f));
+                    for (int i = 0; i < FIELDS; i++)
+                    {
+                        out.append(',').append(String.format("%.3f", row * 0.001 + i));
+                    }
+                    sink += out.length();
+                    row++;
+                }
+            });
+
+            run("CsvNumberEncoder", report, new Runnable() {
+                final StringBuilder out = new StringBuilder(256);
+                long row;
+
+                @Override
+                public void run()
+                {
+                    out.setLength(0);
+                    CsvNumberEncoder.appendSeconds(out, row, 3);
+                    for (int i = 0; i < FIELDS; i++)
+                    {
+                        out.append(',');
+                        CsvNumberEncoder.appendFixed(out, row * 0.001 + i, 3);
+                    }
+                    sink += out.length();
+                    row++;
+                }
+            });
+
+            final Datalogger.DoubleField[] fields = new Datalogger.DoubleField[FIELDS];
+            for (int i = 0; i < FIELDS; i++)
+            {
+                fields[i] = new Datalogger.DoubleField("Field " + i);
+            }
+            final Datalogger datalogger = new Datalogger.Builder()
+                    .setDirectory(dir.getPath())
+                    .setFilename("encoder_bench")
+                    .setAutoTimestamp(Datalogger.AutoTimestamp.DECIMAL_SECONDS)
+                    .setFields(fields)
+                    .build();
+
+            run("Datalogger.writeLine (DoubleField)", report, new Runnable() {
+                long row;
+
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < FIELDS; i++)
+                    {
+                        fields[i].set(row * 0.001 + i);
+                    }
+                    datalogger.writeLine();
+                    row++;
+                }
+            });
+
+            OpModeManagerImpl.stopOpMode();
+        }
+    }
+
+    private static void run(String name, boolean report, Runnable row)
+    {
+        for (int i = 0; i < WARMUP_ROWS; i++)
+        {
+            row.run();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROWS; i++)
+        {
+            row.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+        if (report)
+        {
+            System.out.printf("%-36s %8.1f ns/row %10.2f B/row%n",
+                    name, (double) elapsed / ROWS, (double) bytes / ROWS);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.robotcore.internal.opmode.OpModeManagerImpl;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/*
+ * Compares the Datalogger output backends (STREAM, CHANNEL, MAPPED) by
+ * logging the same rows through each, synchronously, on a local filesystem.
+ * Binary logs are included because formatting doesn't hide the I/O cost
+ * there. The FileWriter + BufferedWriter path used before backends existed
+ * is included as a baseline.
+ *
+ * Usage: OutputBackendBench [rows] [directory]
+ */
+public class OutputBackendBench
+{
+    private static final int FIELDS = 10;
+
+    public static void main(String[] args) throws IOException
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"), "datalog-bench");
+        dir.mkdirs();
+
+        // The first pass warms up the JIT; only the second is reported.
+        for (int pass = 0; pass < 2; pass++)
+        {
+            boolean report = pass == 1;
+            baseline(new File(dir, "backend_baseline.txt"), rows, report);
+            for (Datalogger.Format format : Datalogger.Format.values())
+            {
+                for (Datalogger.Backend backend : Datalogger.Backend.values())
+                {
+                    datalogger(dir, format, backend, rows, report);
+                }
+            }
+        }
+    }
+
+    private static void datalogger(File dir, Datalogger.Format format, Datalogger.Backend backend, int rows, boolean report)
+    {
+        Datalogger.DoubleField[] fields = newFields();
+        String filename = "backend_" + format.name().toLowerCase() + "_" + backend.name().toLowerCase();
+        String extension = format == Datalogger.Format.CSV ? ".txt" : ".dlog";
+
+        long start = System.nanoTime();
+        Datalogger datalogger = new Datalogger.Builder()
+                .setDirectory(dir.getPath())
+                .setFilename(filename)
+                .setAutoTimestamp(Datalogger.AutoTimestamp.DECIMAL_SECONDS)
+                .setFormat(format)
+                .setBackend(backend)
+                .setFields(fields)
+                .build();
+
+        for (int row = 0; row < rows; row++)
+        {
+            for (int i = 0; i < FIELDS; i++)
+            {
+                fields[i].set(row * 0.001 + i);
+            }
+            datalogger.writeLine();
+        }
+        OpModeManagerImpl.stopOpMode();
+        long elapsed = System.nanoTime() - start;
+
+        print(report, format + " " + backend, rows, elapsed, new File(dir, filename + extension).length());
+    }
+
+    private static void baseline(File file, int rows, boolean report) throws IOException
+    {
+        Datalogger.DoubleField[] fields = newFields();
+        StringBuilder line = new StringBuilder(256);
+        long tRef = System.currentTimeMillis();
+
+        long start = System.nanoTime();
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file, false));
+        for (int row = 0; row < rows; row++)
+        {
+            line.setLength(0);
+            CsvNumberEncoder.appendSeconds(line, System.currentTimeMillis() - tRef, 3);
+            for (int i = 0; i < FIELDS; i++)
+            {
+                fields[i].set(row * 0.001 + i);
+                line.append(',');
+                fields[i].writeToBuffer(line);
+            }
+            writer.write(line.toString());
+            writer.newLine();
+        }
+        writer.close();
+        long elapsed = System.nanoTime() - start;
+
+        print(report, "BufferedWriter (before)", rows, elapsed, file.length());
+    }
+
+    private static Datalogger.DoubleField[] newFields()
+    {
+        Datalogger.DoubleField[] fields = new Datalogger.DoubleField[FIELDS];
+        for (int i = 0; i < FIELDS; i++)
+        {
+            fields[i] = new Datalogger.DoubleField("Field " + i);
+        }
+        return fields;
+    }
+
+    private static void print(boolean report, String name, int rows, long elapsedNs, long bytes)
+    {
+        if (!report) return;
+        System.out.printf("%-24s %7.1f ns/row %8.1f MB/s %10d bytes%n",
+                name, (double) elapsedNs / rows, bytes / (elapsedNs / 1e9) / 1e6, bytes);
+    }
+}
@@ -0,0 +1,158 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.firstinspires.ftc.robotcore.internal.opmode.OpModeManagerImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost of one Datalogger.writeLine() (one row), synchronously to a local
+ * file, for typed DoubleFields, for GenericFields set from a double, and
+ * for a MIXED log cycling through DoubleField, LongField, IntField and
+ * BooleanField columns, as a real robot log would. Each op sets every
+ * field and writes the line.
+ *
+ * Segments are rotated at 64 MB and all but the newest 128 MB deleted, so a
+ * long run doesn't fill the disk; that housekeeping runs on a background
+ * thread and is rare enough not to show in the averages.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataloggerWriteLineBench
+{
+    @Param({"5", "10", "25", "50", "100"})
+    public int fields;
+
+    @Param({"DOUBLE", "GENERIC", "MIXED"})
+    public String fieldType;
+
+    @Param({"CSV", "BINARY"})
+    public Datalogger.Format format;
+
+    private Datalogger.DoubleField[] doubleFields;
+    private Datalogger.GenericField[] genericFields;
+    private Datalogger.LongField[] longFields;
+    private Datalogger.IntField[] intFields;
+    private Datalogger.BooleanField[] booleanFields;
+    private Datalogger datalogger;
+    private long row;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        Datalogger.LoggableField[] columns = new Datalogger.LoggableField[fields];
+        if (fieldType.equals("DOUBLE"))
+        {
+            doubleFields = new Datalogger.DoubleField[fields];
+            for (int i = 0; i < fields; i++)
+            {
+                columns[i] = doubleFields[i] = new Datalogger.DoubleField("Field " + i);
+            }
+        }
+        else if (fieldType.equals("GENERIC"))
+        {
+            genericFields = new Datalogger.GenericField[fields];
+            for (int i = 0; i < fields; i++)
+            {
+                columns[i] = genericFields[i] = new Datalogger.GenericField("Field " + i);
+            }
+        }
+        else
+        {
+            doubleFields = new Datalogger.DoubleField[(fields + 3) / 4];
+            longFields = new Datalogger.LongField[(fields + 2) / 4];
+            intFields = new Datalogger.IntField[(fields + 1) / 4];
+            booleanFields = new Datalogger.BooleanField[fields / 4];
+            for (int i = 0; i < fields; i++)
+            {
+                String name = "Field " + i;
+                switch (i % 4)
+                {
+                    case 0:
+                        columns[i] = doubleFields[i / 4] = new Datalogger.DoubleField(name);
+                        break;
+                    case 1:
+                        columns[i] = longFields[i / 4] = new Datalogger.LongField(name);
+                        break;
+                    case 2:
+                        columns[i] = intFields[i / 4] = new Datalogger.IntField(name);
+                        break;
+                    default:
+                        columns[i] = booleanFields[i / 4] = new Datalogger.BooleanField(name);
+                        break;
+                }
+            }
+        }
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "datalog-jmh");
+        datalogger = new Datalogger.Builder()
+                .setDirectory(dir.getPath())
+                .setFilename("writeline_" + fields + "_" + fieldType + "_" + format)
+                .setAutoTimestamp(Datalogger.AutoTimestamp.DECIMAL_SECONDS)
+                .setFormat(format)
+                .setRotation(64L << 20, 0)
+                .setRetentionBytes(128L << 20)
+                .setFields(columns)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        OpModeManagerImpl.stopOpMode();
+    }
+
+    @Benchmark
+    public void writeLine()
+    {
+        double base = row * 0.001;
+        if (genericFields != null)
+        {
+            for (int i = 0; i < genericFields.length; i++)
+            {
+                genericFields[i].set(base + i);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < doubleFields.length; i++)
+            {
+                doubleFields[i].set(base + i);
+            }
+        }
+        if (longFields != null)
+        {
+            for (int i = 0; i < longFields.length; i++)
+            {
+                longFields[i].set(row + i);
+            }
+            for (int i = 0; i < intFields.length; i++)
+            {
+                intFields[i].set((int) row - i);
+            }
+            for (int i = 0; i < booleanFields.length; i++)
+            {
+                booleanFields[i].set(((row + i) & 1) == 0);
+            }
+        }
+        row++;
+        datalogger.writeLine();
+    }
+}
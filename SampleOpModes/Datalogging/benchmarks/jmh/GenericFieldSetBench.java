@@ -0,0 +1,102 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost of each Datalogger.GenericField.set() overload, and of the typed
+ * DoubleField.set() for comparison. The value changes on every call so the
+ * text can't be cached. Each op is one set().
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GenericFieldSetBench
+{
+    private final Datalogger.GenericField field = new Datalogger.GenericField("Field");
+    private final Datalogger.DoubleField doubleField = new Datalogger.DoubleField("Double");
+    private final String[] strings = {"IDLE", "DRIVING", "LIFTING", "SCORING"};
+    private int count;
+
+    @Benchmark
+    public Datalogger.GenericField setString()
+    {
+        field.set(strings[count++ & 3]);
+        return field;
+    }
+
+    @Benchmark
+    public Datalogger.GenericField setFormat()
+    {
+        field.set("%d/%d", count++, 4);
+        return field;
+    }
+
+    @Benchmark
+    public Datalogger.GenericField setInt()
+    {
+        field.set(count++);
+        return field;
+    }
+
+    @Benchmark
+    public Datalogger.GenericField setBoolean()
+    {
+        field.set((count++ & 1) == 0);
+        return field;
+    }
+
+    @Benchmark
+    public Datalogger.GenericField setByte()
+    {
+        field.set((byte) count++);
+        return field;
+    }
+
+    @Benchmark
+    public Datalogger.GenericField setFloat()
+    {
+        field.set(count++ * 0.001f);
+        return field;
+    }
+
+    @Benchmark
+    public Datalogger.GenericField setFloatWithFormat()
+    {
+        field.set("%.2f", count++ * 0.001f);
+        return field;
+    }
+
+    @Benchmark
+    public Datalogger.GenericField setDouble()
+    {
+        field.set(count++ * 0.001);
+        return field;
+    }
+
+    @Benchmark
+    public Datalogger.GenericField setDoubleWithFormat()
+    {
+        field.set("%.2f", count++ * 0.001);
+        return field;
+    }
+
+    @Benchmark
+    public Datalogger.DoubleField doubleFieldSet()
+    {
+        doubleField.set(count++ * 0.001);
+        return doubleField;
+    }
+}
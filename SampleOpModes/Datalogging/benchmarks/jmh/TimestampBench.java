@@ -0,0 +1,78 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost of producing one timestamp cell: Datalogger's own TimestampField and
+ * MicrosField, the DecimalFormat code TimestampField replaced, and the two
+ * columns W_Datalogger_v05 inserts on each newLine().
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimestampBench
+{
+    private final DecimalFormat decimalFormat = new DecimalFormat("000.000");
+    private final StringBuilder out = new StringBuilder(64);
+    private final long tRefNs = System.nanoTime();
+    private final long tRefMs = System.currentTimeMillis();
+    private final Datalogger.TimestampField timestamp = new Datalogger.TimestampField("Timestamp", tRefNs);
+    private final Datalogger.MicrosField micros = new Datalogger.MicrosField("Time us", tRefNs);
+    private long nsBase = System.nanoTime();
+
+    // Datalogger.TimestampField before CsvNumberEncoder.
+    @Benchmark
+    public StringBuilder decimalFormat()
+    {
+        out.setLength(0);
+        out.append(decimalFormat.format((System.currentTimeMillis() - tRefMs) / 1000f));
+        return out;
+    }
+
+    // Datalogger.TimestampField.writeToBuffer(), AutoTimestamp.DECIMAL_SECONDS.
+    @Benchmark
+    public StringBuilder timestampField()
+    {
+        out.setLength(0);
+        timestamp.writeToBuffer(out);
+        return out;
+    }
+
+    // Datalogger.MicrosField.writeToBuffer(), AutoTimestamp.MICROSECONDS.
+    @Benchmark
+    public StringBuilder microseconds()
+    {
+        out.setLength(0);
+        micros.writeToBuffer(out);
+        return out;
+    }
+
+    // W_Datalogger_v05.insertTimestamps(): "Time" and "d ms".
+    @Benchmark
+    public StringBuilder wDataloggerTimestamps()
+    {
+        long milliTime = System.currentTimeMillis();
+        long nanoTime = System.nanoTime();
+        out.setLength(0);
+        CsvNumberEncoder.appendFixed(out, (milliTime - tRefMs) / 1000.0, 3);
+        out.append(',');
+        CsvNumberEncoder.appendFixed(out, (nanoTime - nsBase) / 1.0E6, 3);
+        out.append(',');
+        nsBase = nanoTime;
+        return out;
+    }
+}
@@ -0,0 +1,84 @@
+package org.firstinspires.ftc.teamcode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost of one W_Datalogger_v05 row: addField(double) for every column,
+ * then newLine(). Comparable to DataloggerWriteLineBench with DOUBLE fields.
+ * With async, the file writes happen on W_Datalogger_v05's own thread, so
+ * this measures what is left on the OpMode's thread.
+ *
+ * The log is written under java.io.tmpdir, not the robot's Datalogs
+ * folder, and deleted after each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WDataloggerBench
+{
+    @Param({"5", "10", "25", "50", "100"})
+    public int fields;
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    private W_Datalogger_v05 datalogger;
+    private File directory;
+    private String filename;
+    private long row;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        directory = new File(System.getProperty("java.io.tmpdir"), "datalog-jmh");
+        directory.mkdirs();
+        filename = "jmh_wdatalogger_" + fields;
+        datalogger = new W_Datalogger_v05(directory.getPath(), filename, async);
+        if (datalogger.getWriteErrors() > 0)
+        {
+            // Otherwise every line would be dropped, and that is all this would measure.
+            throw new IllegalStateException("Unable to create " + filename + " in " + directory, datalogger.getLastError());
+        }
+        for (int i = 0; i < fields; i++)
+        {
+            datalogger.addField("Field " + i);
+        }
+        datalogger.firstLine();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        datalogger.closeDataLogger();
+        new File(directory, filename + ".txt").delete();
+    }
+
+    @Benchmark
+    public void newLine()
+    {
+        double base = row++ * 0.001;
+        for (int i = 0; i < fields; i++)
+        {
+            datalogger.addField(base + i);
+        }
+        datalogger.newLine();
+    }
+}
@@ -0,0 +1,8 @@
+package android.app;
+
+/*
+ * Desktop stand-in for the Android class. Do not copy into a robot project.
+ */
+public class Activity
+{
+}
@@ -0,0 +1,8 @@
+package com.qualcomm.robotcore.eventloop.opmode;
+
+/*
+ * Desktop stand-in for the FTC SDK class. Do not copy into a robot project.
+ */
+public abstract class OpMode
+{
+}
@@ -0,0 +1,16 @@
+package com.qualcomm.robotcore.eventloop.opmode;
+
+/*
+ * Desktop stand-in for the FTC SDK interface. Do not copy into a robot project.
+ */
+public interface OpModeManagerNotifier
+{
+    interface Notifications
+    {
+        void onOpModePreInit(OpMode opMode);
+
+        void onOpModePreStart(OpMode opMode);
+
+        void onOpModePostStop(OpMode opMode);
+    }
+}
@@ -0,0 +1,48 @@
+package org.firstinspires.ftc.robotcore.internal.opmode;
+
+import android.app.Activity;
+
+import com.qualcomm.robotcore.eventloop.opmode.OpModeManagerNotifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Desktop stand-in for the FTC SDK class, for running the benchmarks on a
+ * plain JVM. Do not copy into a robot project.
+ */
+public class OpModeManagerImpl
+{
+    private static final OpModeManagerImpl INSTANCE = new OpModeManagerImpl();
+
+    private final List<OpModeManagerNotifier.Notifications> listeners = new ArrayList<>();
+
+    public static OpModeManagerImpl getOpModeManagerOfActivity(Activity activity)
+    {
+        return INSTANCE;
+    }
+
+    public synchronized void registerListener(OpModeManagerNotifier.Notifications listener)
+    {
+        listeners.add(listener);
+    }
+
+    public synchronized void unregisterListener(OpModeManagerNotifier.Notifications listener)
+    {
+        listeners.remove(listener);
+    }
+
+    // Simulates the end of an OpMode, which closes every open Datalogger.
+    public static void stopOpMode()
+    {
+        List<OpModeManagerNotifier.Notifications> copy;
+        synchronized (INSTANCE)
+        {
+            copy = new ArrayList<>(INSTANCE.listeners);
+        }
+        for (OpModeManagerNotifier.Notifications listener : copy)
+        {
+            listener.onOpModePostStop(null);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.firstinspires.ftc.robotcore.internal.system;
+
+import android.app.Activity;
+
+/*
+ * Desktop stand-in for the FTC SDK class. Do not copy into a robot project.
+ */
+public class AppUtil
+{
+    private static final AppUtil INSTANCE = new AppUtil();
+    private final Activity activity = new Activity();
+
+    public static AppUtil getInstance()
+    {
+        return INSTANCE;
+    }
+
+    public Activity getActivity()
+    {
+        return activity;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+Desktop stress check for the async ring under each Backpressure policy. An
+OpMode thread floods a small ring as fast as it can, so the writer thread
+and the producer contend for the same rows all the time, while a field's
+output occasionally stalls like a slow SD card. Afterwards every row offered
+must be accounted for: written to the file, or counted by getDroppedRows()
+or getDecimatedRows(), with the rows written still in order and the
+"Backpressure:" marker lines adding up to the rows dropped. Prints the
+first discrepancy and exits with status 1 if any.
+
+Compile and run from the Datalogging folder, with JDK 8 or newer:
+
+  javac -d /tmp/datalog-checks $(find benchmarks/stubs -name '*.java') \
+      Datalogger.java CsvNumberEncoder.java tools/DatalogReader.java checks/*.java
+  java -cp /tmp/datalog-checks BackpressureStressCheck [rows] [runs]
+*/
+
+import org.firstinspires.ftc.robotcore.internal.opmode.OpModeManagerImpl;
+import org.firstinspires.ftc.teamcode.Datalogger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class BackpressureStressCheck
+{
+    private static final Pattern DROPPED = Pattern.compile("dropped (\\d+)");
+
+    public static void main(String[] args) throws IOException
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "datalog-checks");
+        dir.mkdirs();
+
+        boolean ok = true;
+        for (Datalogger.Backpressure policy : Datalogger.Backpressure.values())
+        {
+            for (int run = 0; run < runs; run++)
+            {
+                ok &= check(dir, policy, rows, run);
+            }
+        }
+        System.out.println(ok ? "OK" : "FAILED");
+        if (!ok) System.exit(1);
+    }
+
+    // Stalls the writer thread for 1 ms on every 4000th row it writes.
+    private static class StallingField extends Datalogger.LoggableField
+    {
+        private int written;
+
+        StallingField()
+        {
+            super("Stall");
+        }
+
+        @Override
+        public void writeToBuffer(StringBuilder out)
+        {
+            out.append('s');
+        }
+
+        @Override
+        protected void capture(Datalogger.Row row, int column)
+        {
+            row.setLong(column, 0);
+        }
+
+        @Override
+        protected void writeCaptured(Datalogger.Row row, int column, StringBuilder out)
+        {
+            if (++written % 4000 == 0) LockSupport.parkNanos(1000000);
+            out.append('s');
+        }
+    }
+
+    private static boolean check(File dir, Datalogger.Backpressure policy, int rows, int run) throws IOException
+    {
+        Datalogger.LongField sequence = new Datalogger.LongField("N");
+        String filename = "stress_" + policy.name().toLowerCase();
+        Datalogger datalogger = new Datalogger.Builder()
+                .setDirectory(dir.getPath())
+                .setFilename(filename)
+                .setAutoTimestamp(Datalogger.AutoTimestamp.NONE)
+                .setFormat(Datalogger.Format.BINARY)
+                .setAsync(16)
+                .setBackpressure(policy)
+                .setEventColumn("Event")
+                .setFields(sequence, new StallingField())
+                .build();
+        for (int row = 0; row < rows; row++)
+        {
+            sequence.set(row);
+            datalogger.writeLine();
+            // Odd runs hand over the CPU now and then, so a single core sees contention too.
+            if (run % 2 == 1 && row % 8 == 0) Thread.yield();
+        }
+        long dropped = datalogger.getDroppedRows();
+        long decimated = datalogger.getDecimatedRows();
+        OpModeManagerImpl.stopOpMode();
+
+        long written = 0;
+        long marked = 0;
+        long previous = -1;
+        try (DatalogReader reader = new DatalogReader(new FileInputStream(new File(dir, filename + ".dlog"))))
+        {
+            int event = reader.getColumnCount() - 1;
+            while (reader.next())
+            {
+                if (!reader.isEmpty(event))
+                {
+                    Matcher matcher = DROPPED.matcher(reader.getText(event));
+                    if (matcher.find()) marked += Long.parseLong(matcher.group(1));
+                    continue;
+                }
+                long value = reader.getLong(0);
+                if (value <= previous)
+                {
+                    System.out.println(policy + " run " + run + ": row " + value + " written after " + previous);
+                    return false;
+                }
+                previous = value;
+                written++;
+            }
+        }
+
+        String result = policy + " run " + run + ": offered " + rows + ", written " + written
+                + ", dropped " + dropped + ", decimated " + decimated + ", marked dropped " + marked;
+        boolean ok = written + dropped + decimated == rows && marked == dropped
+                && (policy != Datalogger.Backpressure.BLOCK || written == rows);
+        System.out.println((ok ? "" : "MISMATCH ") + result);
+        return ok;
+    }
+}
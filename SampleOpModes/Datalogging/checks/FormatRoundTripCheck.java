@@ -0,0 +1,124 @@
+/*
+Desktop check that Format.BINARY and Format.COMPRESSED logs read back as
+exactly the values that were logged, including the extremes: Long.MIN_VALUE
+to Long.MAX_VALUE jumps, Integer limits, NaN, infinities and -0.0. Each
+sequence is long enough to span several compressed blocks. Prints the first
+mismatch and exits with status 1 if any value differs.
+
+Compile and run from the Datalogging folder, with JDK 8 or newer:
+
+  javac -d /tmp/datalog-checks $(find benchmarks/stubs -name '*.java') \
+      Datalogger.java CsvNumberEncoder.java tools/DatalogReader.java checks/*.java
+  java -cp /tmp/datalog-checks FormatRoundTripCheck
+*/
+
+import org.firstinspires.ftc.robotcore.internal.opmode.OpModeManagerImpl;
+import org.firstinspires.ftc.teamcode.Datalogger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class FormatRoundTripCheck
+{
+    private static final int ROWS = 3000;
+
+    private static final long[] EXTREME_LONGS = {
+            0, Long.MAX_VALUE, Long.MIN_VALUE, 5, -(1L << 62), 1L << 62, Long.MIN_VALUE,
+            Long.MAX_VALUE, -1, 1, Long.MIN_VALUE + 1, Long.MAX_VALUE - 1, 0, 0, 1L << 32,
+            -(1L << 32), (1L << 63) - (1L << 31), 1L << 12, -(1L << 9), 127, -128};
+
+    private static final int[] EXTREME_INTS = {
+            0, Integer.MAX_VALUE, Integer.MIN_VALUE, 7, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 1 << 20};
+
+    private static final double[] EXTREME_DOUBLES = {
+            0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+            Double.MIN_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, 1e-300, 0.1, 0.1, 3.0};
+
+    public static void main(String[] args) throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "datalog-checks");
+        dir.mkdirs();
+
+        long[] longs = new long[ROWS];
+        int[] ints = new int[ROWS];
+        double[] doubles = new double[ROWS];
+        Random random = new Random(1);
+        for (int row = 0; row < ROWS; row++)
+        {
+            // Extremes first, then a mix of steady steps and random jumps.
+            longs[row] = row < EXTREME_LONGS.length ? EXTREME_LONGS[row]
+                    : row % 7 == 0 ? random.nextLong() : longs[row - 1] + 20;
+            ints[row] = row < EXTREME_INTS.length ? EXTREME_INTS[row]
+                    : row % 5 == 0 ? random.nextInt() : ints[row - 1] + 3;
+            doubles[row] = row < EXTREME_DOUBLES.length ? EXTREME_DOUBLES[row]
+                    : row % 11 == 0 ? Double.longBitsToDouble(random.nextLong()) : Math.sin(row * 0.01);
+        }
+
+        boolean ok = true;
+        for (Datalogger.Format format : new Datalogger.Format[] {Datalogger.Format.BINARY, Datalogger.Format.COMPRESSED})
+        {
+            ok &= check(dir, format, longs, ints, doubles);
+        }
+        System.out.println(ok ? "OK" : "FAILED");
+        if (!ok) System.exit(1);
+    }
+
+    private static boolean check(File dir, Datalogger.Format format, long[] longs, int[] ints, double[] doubles)
+            throws IOException
+    {
+        Datalogger.LongField longField = new Datalogger.LongField("Long");
+        Datalogger.IntField intField = new Datalogger.IntField("Int");
+        Datalogger.DoubleField doubleField = new Datalogger.DoubleField("Double");
+
+        String filename = "roundtrip_" + format.name().toLowerCase();
+        Datalogger datalogger = new Datalogger.Builder()
+                .setDirectory(dir.getPath())
+                .setFilename(filename)
+                .setAutoTimestamp(Datalogger.AutoTimestamp.NONE)
+                .setFormat(format)
+                .setFields(longField, intField, doubleField)
+                .build();
+        for (int row = 0; row < longs.length; row++)
+        {
+            longField.set(longs[row]);
+            intField.set(ints[row]);
+            doubleField.set(doubles[row]);
+            datalogger.writeLine();
+        }
+        OpModeManagerImpl.stopOpMode();
+
+        int row = 0;
+        try (DatalogReader reader = new DatalogReader(new FileInputStream(new File(dir, filename + ".dlog"))))
+        {
+            for (; reader.next(); row++)
+            {
+                if (row >= longs.length)
+                {
+                    System.out.println(format + ": more rows than were logged");
+                    return false;
+                }
+                // DOUBLE columns hold the raw bits, so NaN and -0.0 compare exactly too.
+                long[] expected = {longs[row], ints[row], Double.doubleToRawLongBits(doubles[row])};
+                for (int column = 0; column < expected.length; column++)
+                {
+                    if (reader.isEmpty(column) || reader.getLong(column) != expected[column])
+                    {
+                        System.out.println(format + ": row " + row + " column " + reader.getColumnName(column)
+                                + " read " + (reader.isEmpty(column) ? "nothing" : reader.getLong(column))
+                                + ", logged " + expected[column]);
+                        return false;
+                    }
+                }
+            }
+        }
+        if (row != longs.length)
+        {
+            System.out.println(format + ": read " + row + " rows, logged " + longs.length);
+            return false;
+        }
+        System.out.println(format + ": " + row + " rows match");
+        return true;
+    }
+}
@@ -0,0 +1,573 @@
+/*
+Desktop tool that shrinks a long datalog to a size a spreadsheet can chart,
+without hiding spikes the way keeping every n-th line does. Each numeric
+column is reduced to about the requested number of points, picked with
+Largest-Triangle-Three-Buckets (LTTB, the default) or as the minimum and
+maximum of each bucket (--minmax). The output is a CSV of whole lines from
+the original log: every line that some column picked, in their original
+order. So the timestamp and all the other cells of a kept line stay
+exactly as logged.
+
+Compile and run from the Datalogging folder, with JDK 8 or newer:
+
+  javac -d /tmp/datalog-tools CsvNumberEncoder.java tools/*.java
+  java -cp /tmp/datalog-tools DatalogDownsample datalog_01.txt 2000
+  java -cp /tmp/datalog-tools DatalogDownsample --minmax datalog_01.dlog 2000 chart.csv
+  adb exec-out cat /sdcard/FIRST/java/src/Datalogs/datalog_01.dlog | \
+      java -cp /tmp/datalog-tools DatalogDownsample - 2000 chart.csv
+
+Without an output name the CSV is written next to the input, as
+<name>_2000.csv, or to standard output when the input is "-" (standard
+input). Reads CSV and binary (.dlog) logs, plain or gzipped, told apart by
+their first bytes.
+
+The point count is per column: each column keeps its own points, so with
+several numeric columns the output can have up to that many times the
+requested lines, fewer where columns peak on the same lines. Ask for fewer
+points if a chart needs a hard line limit.
+
+The log is read once, in memory bounded by the point count rather than the
+log length, so it can come from a pipe. Text cells (states, events) only
+appear on lines kept for a number.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+
+public class DatalogDownsample
+{
+    public static void main(String[] args) throws IOException
+    {
+        boolean minMax = args.length > 0 && args[0].equals("--minmax");
+        int first = minMax ? 1 : 0;
+        if (args.length - first < 2 || args.length - first > 3)
+        {
+            System.err.println("Usage: java DatalogDownsample [--minmax] <log file, or - for stdin> <points per column> [output.csv, or - for stdout]");
+            System.exit(1);
+        }
+
+        String input = args[first];
+        int points = Integer.parseInt(args[first + 1]);
+        String output;
+        if (args.length - first > 2)
+        {
+            output = args[first + 2];
+        }
+        else if (input.equals("-"))
+        {
+            output = "-";
+        }
+        else
+        {
+            String base = input.replaceFirst("(\\.gz)?$", "").replaceFirst("\\.[^.\\\\/]*$", "");
+            output = base + "_" + points + ".csv";
+        }
+        if (points < 3) throw new IllegalArgumentException("Need at least 3 points");
+
+        long[] counts = downsample(input, output, points, minMax);
+        // Standard output may be the CSV itself.
+        PrintStream report = output.equals("-") ? System.err : System.out;
+        report.println("Wrote " + counts[1] + " of " + counts[0] + " lines to " + (output.equals("-") ? "standard output" : output));
+    }
+
+    // Input and output are file names, or "-" for standard input and output. Returns {lines read, lines written}.
+    public static long[] downsample(String input, String output, int points, boolean minMax) throws IOException
+    {
+        try (LineSource source = LineSource.open(input))
+        {
+            Downsampler downsampler = new Downsampler(source.columns(), points, minMax);
+            while (source.next())
+            {
+                downsampler.add(source.line(), source.x(), source.values());
+            }
+            ArrayList<Line> kept = downsampler.finish();
+
+            // Opened only now, so the output can even replace the input.
+            OutputStream out = output.equals("-") ? System.out : new FileOutputStream(output);
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536))
+            {
+                writer.write(source.header());
+                writer.write('\n');
+                for (Line line : kept)
+                {
+                    writer.write(line.text);
+                    writer.write('\n');
+                }
+            }
+            return new long[] {downsampler.lines, kept.size()};
+        }
+    }
+
+    // A line of the log, kept while some span holds it as a candidate.
+    private static class Line
+    {
+        final long number;
+        final String text;
+        final double x;
+
+        Line(long number, String text, double x)
+        {
+            this.number = number;
+            this.text = text;
+            this.x = x;
+        }
+    }
+
+    /*
+     * Picks the points in one pass, without knowing how long the log is.
+     * The lines between the first and the last are summarized into spans of
+     * `span` lines, each holding per numeric column the count and sums of
+     * its values and its lowest and highest point. Once there are four
+     * spans per bucket, neighbouring spans are merged in pairs and `span`
+     * doubles. That merge loses nothing: counts and sums add up, and the
+     * lower of two lowest points is the lowest of both spans.
+     *
+     * At the end the spans are grouped into the buckets, of equal line count
+     * to within a span, and each bucket keeps per column:
+     *
+     *   LTTB: whichever of its lowest and highest point forms the larger
+     *   triangle with the point kept from the previous bucket and the
+     *   average of the next bucket. A bucket is short next to the distance
+     *   between those two, so its largest triangle is at, or very near in
+     *   area to, one of its extremes.
+     *
+     *   --minmax: its lowest and highest point, with half as many buckets so
+     *   the count per column is about the same.
+     *
+     * The first and last lines are always kept.
+     */
+    private static class Downsampler
+    {
+        private final int columns;
+        private final int buckets;
+        private final boolean minMax;
+        private long lines;
+
+        private Line first;
+        private double[] firstValues;
+        // The latest line, added to a span once another follows, so the last line never is.
+        private Line pending;
+        private final double[] pendingValues;
+
+        private final ArrayList<Span> spans = new ArrayList<>();
+        private long span = 1;
+
+        Downsampler(int columns, int points, boolean minMax)
+        {
+            this.columns = columns;
+            this.buckets = Math.max(1, minMax ? (points - 2) / 2 : points - 2);
+            this.minMax = minMax;
+            pendingValues = new double[columns];
+        }
+
+        void add(String text, double x, double[] values)
+        {
+            Line line = new Line(lines++, text, x);
+            if (first == null)
+            {
+                first = line;
+                firstValues = values.clone();
+                return;
+            }
+            if (pending != null)
+            {
+                addToSpan(pending, pendingValues);
+            }
+            pending = line;
+            System.arraycopy(values, 0, pendingValues, 0, columns);
+        }
+
+        private void addToSpan(Line line, double[] values)
+        {
+            Span current = spans.isEmpty() ? null : spans.get(spans.size() - 1);
+            if (current == null || current.lines == span)
+            {
+                if (spans.size() >= 4L * buckets)
+                {
+                    int half = spans.size() / 2;
+                    for (int i = 0; i < half; i++)
+                    {
+                        Span merged = spans.get(2 * i);
+                        merged.merge(spans.get(2 * i + 1));
+                        spans.set(i, merged);
+                    }
+                    spans.subList(half, spans.size()).clear();
+                    span *= 2;
+                }
+                current = new Span(columns);
+                spans.add(current);
+            }
+            current.add(line, values);
+        }
+
+        // Returns the kept lines in file order.
+        ArrayList<Line> finish()
+        {
+            ArrayList<Line> kept = new ArrayList<>();
+            if (first == null) return kept;
+            kept.add(first);
+
+            int count = Math.min(buckets, spans.size());
+            Span[] groups = new Span[count];
+            for (int g = 0; g < count; g++)
+            {
+                int from = (int) ((long) g * spans.size() / count);
+                int to = (int) ((long) (g + 1) * spans.size() / count);
+                groups[g] = spans.get(from);
+                for (int i = from + 1; i < to; i++)
+                {
+                    groups[g].merge(spans.get(i));
+                }
+            }
+
+            for (int c = 0; c < columns; c++)
+            {
+                double ax = first.x;
+                double ay = firstValues[c];
+                for (int g = 0; g < count; g++)
+                {
+                    Span b = groups[g];
+                    if (b.counts[c] == 0) continue;
+                    if (minMax)
+                    {
+                        kept.add(b.low[c]);
+                        kept.add(b.high[c]);
+                        continue;
+                    }
+
+                    double cx = g + 1 < count ? groups[g + 1].meanX(c) : pending.x;
+                    double cy = g + 1 < count ? groups[g + 1].meanY(c) : pendingValues[c];
+                    boolean high = area(ax, ay, b.high[c].x, b.highY[c], cx, cy)
+                            > area(ax, ay, b.low[c].x, b.lowY[c], cx, cy);
+                    kept.add(high ? b.high[c] : b.low[c]);
+                    ax = high ? b.high[c].x : b.low[c].x;
+                    ay = high ? b.highY[c] : b.lowY[c];
+                }
+            }
+            if (pending != null)
+            {
+                kept.add(pending);
+            }
+
+            Collections.sort(kept, new Comparator<Line>()
+            {
+                @Override
+                public int compare(Line a, Line b)
+                {
+                    return Long.compare(a.number, b.number);
+                }
+            });
+            int unique = 0;
+            for (Line line : kept)
+            {
+                if (unique == 0 || kept.get(unique - 1) != line) kept.set(unique++, line);
+            }
+            kept.subList(unique, kept.size()).clear();
+            return kept;
+        }
+
+        // Twice the area of the triangle a b c. Without a, none; without c, how far b is from a.
+        private static double area(double ax, double ay, double bx, double by, double cx, double cy)
+        {
+            if (Double.isNaN(ay)) return 0;
+            if (Double.isNaN(cy)) return Math.abs(by - ay);
+            return Math.abs((ax - cx) * (by - ay) - (ax - bx) * (cy - ay));
+        }
+    }
+
+    // Consecutive lines summarized per column: count, sums (for the means) and the lowest and highest point.
+    private static class Span
+    {
+        private long lines;
+        private final int[] counts;
+        private final double[] sumX;
+        private final double[] sumY;
+        private final Line[] low;
+        private final Line[] high;
+        private final double[] lowY;
+        private final double[] highY;
+
+        Span(int columns)
+        {
+            counts = new int[columns];
+            sumX = new double[columns];
+            sumY = new double[columns];
+            low = new Line[columns];
+            high = new Line[columns];
+            lowY = new double[columns];
+            highY = new double[columns];
+        }
+
+        void add(Line line, double[] values)
+        {
+            lines++;
+            for (int c = 0; c < counts.length; c++)
+            {
+                double y = values[c];
+                if (Double.isNaN(y)) continue;
+                counts[c]++;
+                sumX[c] += line.x;
+                sumY[c] += y;
+                if (low[c] == null || y < lowY[c])
+                {
+                    low[c] = line;
+                    lowY[c] = y;
+                }
+                if (high[c] == null || y > highY[c])
+                {
+                    high[c] = line;
+                    highY[c] = y;
+                }
+            }
+        }
+
+        // Takes in the span that follows this one. Ties keep the earlier point.
+        void merge(Span next)
+        {
+            lines += next.lines;
+            for (int c = 0; c < counts.length; c++)
+            {
+                if (next.counts[c] == 0) continue;
+                counts[c] += next.counts[c];
+                sumX[c] += next.sumX[c];
+                sumY[c] += next.sumY[c];
+                if (low[c] == null || next.lowY[c] < lowY[c])
+                {
+                    low[c] = next.low[c];
+                    lowY[c] = next.lowY[c];
+                }
+                if (high[c] == null || next.highY[c] > highY[c])
+                {
+                    high[c] = next.high[c];
+                    highY[c] = next.highY[c];
+                }
+            }
+        }
+
+        double meanX(int column)
+        {
+            return counts[column] > 0 ? sumX[column] / counts[column] : Double.NaN;
+        }
+
+        double meanY(int column)
+        {
+            return counts[column] > 0 ? sumY[column] / counts[column] : Double.NaN;
+        }
+    }
+
+    /*
+     * The lines of a CSV or binary log, each as CSV text plus its x value
+     * (the timestamp, or the line number if the first column is not one)
+     * and the value of each numeric column (NaN for empty and text cells,
+     * and for the timestamp itself).
+     */
+    private static abstract class LineSource implements AutoCloseable
+    {
+        protected String[] names;
+        protected double[] values;
+        private boolean timed;
+        private long count;
+        private double x;
+
+        // Tells gzip and binary logs apart by their first bytes, since standard input has no name.
+        static LineSource open(String path) throws IOException
+        {
+            InputStream in = new BufferedInputStream(path.equals("-") ? System.in : new FileInputStream(path), 65536);
+            if (startsWith(in, new byte[] {0x1f, (byte) 0x8b}))
+            {
+                in = new BufferedInputStream(new GZIPInputStream(in, 65536), 65536);
+            }
+            return startsWith(in, new byte[] {'D', 'L', 'O', 'G'}) ? new BinaryLines(in) : new CsvLines(in);
+        }
+
+        private static boolean startsWith(InputStream in, byte[] magic) throws IOException
+        {
+            in.mark(magic.length);
+            boolean match = true;
+            for (byte b : magic)
+            {
+                match &= in.read() == (b & 0xff);
+            }
+            in.reset();
+            return match;
+        }
+
+        protected void setColumns(String[] names)
+        {
+            this.names = names;
+            values = new double[names.length];
+            String first = names[0];
+            timed = first.equals("Timestamp") || first.equals("Time") || first.equals("Time us") || first.equals("Capture us");
+        }
+
+        int columns()
+        {
+            return names.length;
+        }
+
+        String header()
+        {
+            return String.join(",", names);
+        }
+
+        boolean next() throws IOException
+        {
+            if (!read()) return false;
+            x = timed && !Double.isNaN(values[0]) ? values[0] : count;
+            if (timed) values[0] = Double.NaN;
+            count++;
+            return true;
+        }
+
+        // Reads the next line into values[] (column 0 holding the time).
+        abstract boolean read() throws IOException;
+
+        abstract String line();
+
+        double x()
+        {
+            return x;
+        }
+
+        double[] values()
+        {
+            return values;
+        }
+
+        @Override
+        public abstract void close() throws IOException;
+
+        static double parse(String text, int start, int end)
+        {
+            if (start >= end) return Double.NaN;
+            char c = text.charAt(start);
+            if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.') return Double.NaN;
+            try
+            {
+                double value = Double.parseDouble(text.substring(start, end));
+                return Double.isInfinite(value) ? Double.NaN : value;
+            }
+            catch (NumberFormatException e)
+            {
+                return Double.NaN;
+            }
+        }
+    }
+
+    private static class CsvLines extends LineSource
+    {
+        private final BufferedReader reader;
+        private String line;
+
+        CsvLines(InputStream in) throws IOException
+        {
+            reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 65536);
+            String header = reader.readLine();
+            if (header == null) throw new IOException("Empty log");
+            setColumns(header.split(",", -1));
+        }
+
+        @Override
+        boolean read() throws IOException
+        {
+            line = reader.readLine();
+            if (line == null) return false;
+
+            int start = 0;
+            for (int i = 0; i < values.length; i++)
+            {
+                int comma = i < values.length - 1 ? line.indexOf(',', start) : -1;
+                int end = comma < 0 ? line.length() : comma;
+                values[i] = parse(line, start, end);
+                start = Math.min(line.length(), end + 1);
+            }
+            return true;
+        }
+
+        @Override
+        String line()
+        {
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            reader.close();
+        }
+    }
+
+    private static class BinaryLines extends LineSource
+    {
+        private final DatalogReader reader;
+        private final StringBuilder line = new StringBuilder(256);
+
+        BinaryLines(InputStream in) throws IOException
+        {
+            reader = new DatalogReader(in);
+            String[] names = new String[reader.getColumnCount()];
+            for (int i = 0; i < names.length; i++)
+            {
+                names[i] = reader.getColumnName(i);
+            }
+            setColumns(names);
+        }
+
+        @Override
+        boolean read() throws IOException
+        {
+            if (!reader.next()) return false;
+
+            line.setLength(0);
+            reader.appendRow(line);
+            for (int i = 0; i < values.length; i++)
+            {
+                if (reader.isEmpty(i))
+                {
+                    values[i] = Double.NaN;
+                }
+                else if (reader.getColumnType(i) == DatalogReader.TYPE_TEXT)
+                {
+                    String text = reader.getText(i);
+                    values[i] = parse(text, 0, text.length());
+                }
+                else if (reader.getColumnType(i) == DatalogReader.TYPE_BOOLEAN)
+                {
+                    values[i] = Double.NaN;
+                }
+                else
+                {
+                    values[i] = reader.getDouble(i);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        String line()
+        {
+            return line.toString();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            reader.close();
+        }
+    }
+}
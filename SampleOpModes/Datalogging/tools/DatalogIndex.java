@@ -0,0 +1,488 @@
+/*
+Desktop tool that pulls a time range out of a large datalog, using the
+sidecar index Datalogger writes with Builder.setIndex() ("<log file>.idx").
+Only the blocks of rows that overlap the range are read; with a column
+filter, blocks whose minimum and maximum fall outside it are skipped too.
+Works for CSV (.txt) and binary (.dlog) logs, and prints CSV.
+
+Compile and run from the Datalogging folder, with JDK 8 or newer:
+
+  javac -d /tmp/datalog-tools CsvNumberEncoder.java tools/*.java
+  java -cp /tmp/datalog-tools DatalogIndex datalog_01.txt 95 100
+  java -cp /tmp/datalog-tools DatalogIndex datalog_01.dlog 0 150 "Arm Current" 5 1000 > stalls.csv
+
+Times are in seconds from the start of the log, as in its Timestamp
+column. The optional filter keeps only rows where that column is between
+min and max. A summary of how many blocks were read goes to stderr.
+
+See Datalogger.IndexedLogWriter for the index layout.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class DatalogIndex
+{
+    // Must match Datalogger.IndexedLogWriter.
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".idx";
+
+    private final boolean timeInSeconds;
+    private final int rowsPerBlock;
+    private final int columns;
+    private final boolean[] summarized;
+    private final ArrayList<Block> blocks = new ArrayList<>();
+
+    // Rows read by the last readRange() and the blocks they came from, for the summary.
+    private long rowsRead;
+    private int blocksRead;
+
+    // One index entry: where a block of rows starts, its time span, and each numeric column's range.
+    public class Block
+    {
+        public final long offset;
+        public final int rows;
+        public final long minTimeUs;
+        public final long maxTimeUs;
+        private final double[] min;
+        private final double[] max;
+
+        Block(long offset, int rows, long minTimeUs, long maxTimeUs, double[] min, double[] max)
+        {
+            this.offset = offset;
+            this.rows = rows;
+            this.minTimeUs = minTimeUs;
+            this.maxTimeUs = maxTimeUs;
+            this.min = min;
+            this.max = max;
+        }
+
+        // NaN if the column is not numeric, or has no value in this block.
+        public double getMin(int column)
+        {
+            return min[column];
+        }
+
+        public double getMax(int column)
+        {
+            return max[column];
+        }
+
+        // False only if no row in this block can have column in [low, high].
+        public boolean mayContain(int column, double low, double high)
+        {
+            if (!summarized[column]) return true;
+            return max[column] >= low && min[column] <= high; // false for NaN: no values
+        }
+    }
+
+    public DatalogIndex(File indexFile) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 65536)))
+        {
+            byte[] header = new byte[12];
+            in.readFully(header);
+            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.get() != 'D' || buffer.get() != 'I' || buffer.get() != 'D' || buffer.get() != 'X')
+            {
+                throw new IOException("Not a datalog index");
+            }
+            int version = buffer.get() & 0xff;
+            if (version != VERSION)
+            {
+                throw new IOException("Unsupported index version " + version);
+            }
+            timeInSeconds = (buffer.get() & 0xff) == DatalogReader.TYPE_SECONDS;
+            rowsPerBlock = buffer.getInt();
+            columns = buffer.getShort() & 0xffff;
+
+            summarized = new boolean[columns];
+            int count = 0;
+            for (int i = 0; i < columns; i++)
+            {
+                summarized[i] = in.readUnsignedByte() != 0;
+                if (summarized[i]) count++;
+            }
+
+            // An entry cut short by a crash is ignored; its rows are found by scanning.
+            byte[] entry = new byte[28 + 16 * count];
+            double[] none = new double[columns];
+            Arrays.fill(none, Double.NaN);
+            while (true)
+            {
+                try
+                {
+                    in.readFully(entry);
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+                buffer = ByteBuffer.wrap(entry).order(ByteOrder.LITTLE_ENDIAN);
+                long offset = buffer.getLong();
+                int rows = buffer.getInt();
+                long minTimeUs = buffer.getLong();
+                long maxTimeUs = buffer.getLong();
+                double[] min = none.clone();
+                double[] max = none.clone();
+                for (int i = 0; i < columns; i++)
+                {
+                    if (!summarized[i]) continue;
+                    min[i] = buffer.getDouble();
+                    max[i] = buffer.getDouble();
+                }
+                blocks.add(new Block(offset, rows, minTimeUs, maxTimeUs, min, max));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 3 && args.length != 6)
+        {
+            System.err.println("Usage: java DatalogIndex <log file> <from seconds> <to seconds> [<column> <min> <max>]");
+            System.exit(1);
+        }
+
+        File log = new File(args[0]);
+        long fromUs = Math.round(Double.parseDouble(args[1]) * 1e6);
+        long toUs = Math.round(Double.parseDouble(args[2]) * 1e6);
+        String column = args.length > 3 ? args[3] : null;
+        double low = args.length > 3 ? Double.parseDouble(args[4]) : 0;
+        double high = args.length > 3 ? Double.parseDouble(args[5]) : 0;
+
+        DatalogIndex index = new DatalogIndex(new File(log.getPath() + EXTENSION));
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 65536);
+        long rows = index.readRange(log, fromUs, toUs, column, low, high, out);
+        out.flush();
+        System.err.println("Wrote " + rows + " rows; read " + index.rowsRead + " rows in "
+                + index.blocksRead + " of " + index.getBlockCount() + " blocks");
+    }
+
+    public int getBlockCount()
+    {
+        return blocks.size();
+    }
+
+    public Block getBlock(int i)
+    {
+        return blocks.get(i);
+    }
+
+    public int getRowsPerBlock()
+    {
+        return rowsPerBlock;
+    }
+
+    /*
+     * Writes the header line, then every row of the log from fromUs to toUs
+     * (microseconds from the start, inclusive) as CSV, in file order. With
+     * a filterColumn name, only rows where that column is in [low, high].
+     * Returns the number of rows written.
+     *
+     * The last indexed block and anything after it (rows written after the
+     * index was last saved, if the robot lost power) are always scanned.
+     */
+    public long readRange(File log, long fromUs, long toUs, String filterColumn, double low, double high, Writer out) throws IOException
+    {
+        RowSource source = log.getName().endsWith(".dlog") ? new BinarySource(log) : new CsvSource(log);
+        rowsRead = 0;
+        blocksRead = 0;
+        long written = 0;
+
+        try
+        {
+            String[] names = source.columnNames();
+            if (names.length != columns) throw new IOException("Index does not match " + log);
+            int filter = -1;
+            if (filterColumn != null)
+            {
+                filter = Arrays.asList(names).indexOf(filterColumn);
+                if (filter < 0) throw new IOException("No column named " + filterColumn);
+            }
+
+            StringBuilder line = new StringBuilder(256);
+            source.appendHeader(line);
+            writeLine(out, line);
+
+            int last = blocks.size() - 1;
+            int previous = -2;
+            for (int b = 0; b <= last; b++)
+            {
+                Block block = blocks.get(b);
+                boolean tail = b == last;
+                if (block.maxTimeUs < fromUs && !tail) continue;
+                if (block.minTimeUs > toUs) continue;
+                if (filter >= 0 && !tail && !block.mayContain(filter, low, high)) continue;
+
+                // The previous block was read to its end, so a following one needs no seek.
+                if (b != previous + 1) source.seek(block.offset);
+                previous = b;
+                blocksRead++;
+                for (int r = 0; tail || r < block.rows; r++)
+                {
+                    if (!source.next()) break;
+                    rowsRead++;
+                    if (source.matches(fromUs, toUs, filter, low, high))
+                    {
+                        line.setLength(0);
+                        source.appendRow(line);
+                        writeLine(out, line);
+                        written++;
+                    }
+                }
+            }
+
+            // Nothing was indexed yet: scan the whole log.
+            if (blocks.isEmpty())
+            {
+                while (source.next())
+                {
+                    rowsRead++;
+                    if (source.matches(fromUs, toUs, filter, low, high))
+                    {
+                        line.setLength(0);
+                        source.appendRow(line);
+                        writeLine(out, line);
+                        written++;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            source.close();
+        }
+        return written;
+    }
+
+    // The robot writes '\n' line endings, so do the same on every desktop OS.
+    private static void writeLine(Writer writer, StringBuilder line) throws IOException
+    {
+        writer.append(line);
+        writer.write('\n');
+    }
+
+    // Rows of a CSV or binary log, read from wherever seek() last put it.
+    private abstract class RowSource
+    {
+        abstract String[] columnNames();
+
+        abstract void appendHeader(StringBuilder out);
+
+        abstract void seek(long offset) throws IOException;
+
+        abstract boolean next() throws IOException;
+
+        abstract boolean isEmpty(int column);
+
+        abstract long timeUs();
+
+        abstract double value(int column);
+
+        abstract void appendRow(StringBuilder out);
+
+        abstract void close() throws IOException;
+
+        boolean matches(long fromUs, long toUs, int filter, double low, double high)
+        {
+            long time = timeUs();
+            if (time < fromUs || time > toUs) return false;
+            if (filter < 0) return true;
+            if (isEmpty(filter)) return false;
+            double value = value(filter);
+            return value >= low && value <= high;
+        }
+    }
+
+    private class CsvSource extends RowSource
+    {
+        private final File file;
+        private final String header;
+        private BufferedReader reader;
+        private String line;
+        private final int[] starts;
+        private final int[] ends;
+
+        CsvSource(File file) throws IOException
+        {
+            this.file = file;
+            reader = open(0);
+            header = reader.readLine();
+            if (header == null) throw new IOException("Empty log " + file);
+            starts = new int[header.split(",", -1).length];
+            ends = new int[starts.length];
+        }
+
+        private BufferedReader open(long offset) throws IOException
+        {
+            FileInputStream in = new FileInputStream(file);
+            in.getChannel().position(offset);
+            return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 65536);
+        }
+
+        @Override
+        String[] columnNames()
+        {
+            return header.split(",", -1);
+        }
+
+        @Override
+        void appendHeader(StringBuilder out)
+        {
+            out.append(header);
+        }
+
+        @Override
+        void seek(long offset) throws IOException
+        {
+            reader.close();
+            reader = open(offset);
+        }
+
+        // Finds where each cell starts and ends, without splitting the line.
+        @Override
+        boolean next() throws IOException
+        {
+            line = reader.readLine();
+            if (line == null) return false;
+
+            int start = 0;
+            for (int i = 0; i < starts.length; i++)
+            {
+                int comma = i < starts.length - 1 ? line.indexOf(',', start) : -1;
+                starts[i] = start;
+                ends[i] = comma < 0 ? line.length() : comma;
+                start = Math.min(line.length(), ends[i] + 1);
+            }
+            return true;
+        }
+
+        @Override
+        boolean isEmpty(int column)
+        {
+            return starts[column] >= ends[column];
+        }
+
+        @Override
+        long timeUs()
+        {
+            String cell = line.substring(starts[0], ends[0]);
+            return timeInSeconds ? Math.round(Double.parseDouble(cell) * 1e6) : Long.parseLong(cell);
+        }
+
+        @Override
+        double value(int column)
+        {
+            try
+            {
+                return Double.parseDouble(line.substring(starts[column], ends[column]));
+            }
+            catch (NumberFormatException e)
+            {
+                return Double.NaN;
+            }
+        }
+
+        @Override
+        void appendRow(StringBuilder out)
+        {
+            out.append(line);
+        }
+
+        @Override
+        void close() throws IOException
+        {
+            reader.close();
+        }
+    }
+
+    private class BinarySource extends RowSource
+    {
+        private final File file;
+        private DatalogReader reader;
+        private final String[] names;
+
+        BinarySource(File file) throws IOException
+        {
+            this.file = file;
+            reader = new DatalogReader(new FileInputStream(file));
+            names = new String[reader.getColumnCount()];
+            for (int i = 0; i < names.length; i++)
+            {
+                names[i] = reader.getColumnName(i);
+            }
+        }
+
+        @Override
+        String[] columnNames()
+        {
+            return names;
+        }
+
+        @Override
+        void appendHeader(StringBuilder out)
+        {
+            reader.appendHeader(out);
+        }
+
+        @Override
+        void seek(long offset) throws IOException
+        {
+            reader.close();
+            FileInputStream rows = new FileInputStream(file);
+            rows.getChannel().position(offset);
+            reader = new DatalogReader(new FileInputStream(file), rows);
+        }
+
+        @Override
+        boolean next() throws IOException
+        {
+            return reader.next();
+        }
+
+        @Override
+        boolean isEmpty(int column)
+        {
+            return reader.isEmpty(column);
+        }
+
+        @Override
+        long timeUs()
+        {
+            return timeInSeconds ? reader.getLong(0) * 1000 : reader.getLong(0);
+        }
+
+        @Override
+        double value(int column)
+        {
+            return reader.getColumnType(column) == DatalogReader.TYPE_TEXT ? Double.NaN : reader.getDouble(column);
+        }
+
+        @Override
+        void appendRow(StringBuilder out)
+        {
+            reader.appendRow(out);
+        }
+
+        @Override
+        void close() throws IOException
+        {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/*
+Reads a binary .dlog file written by Datalogger with Format.BINARY or
+Format.COMPRESSED, one row at a time. Used by the desktop tools in this
+folder; it does not run on the robot and needs no FTC SDK classes.
+
+See Datalogger.BinaryLogWriter and Datalogger.CompressedLogWriter for the
+file layouts.
+*/
+
+import org.firstinspires.ftc.teamcode.CsvNumberEncoder;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class DatalogReader implements Closeable
+{
+    // Must match Datalogger.ColumnType codes.
+    public static final int TYPE_TEXT = 0;
+    public static final int TYPE_DOUBLE = 1;
+    public static final int TYPE_LONG = 2;
+    public static final int TYPE_INT = 3;
+    public static final int TYPE_BOOLEAN = 4;
+    public static final int TYPE_SECONDS = 5;
+
+    private static final int VERSION = 1;
+    private static final int VERSION_COMPRESSED = 2;
+    private static final int RECORD_STRING = 'S';
+    private static final int RECORD_ROW = 'R';
+    private static final int RECORD_BLOCK = 'B';
+    private static final int MAX_STRINGS = 4096;
+    private static final int STRING_ID_BITS = 12;
+
+    private DataInputStream in;
+
+    private final String[] names;
+    private final int[] types;
+    private final int[] decimals;
+
+    private final String[] strings = new String[MAX_STRINGS];
+    private final byte[] bitmap;
+    private final boolean[] empty;
+    private final long[] values;
+    private byte[] scratch = new byte[64];
+
+    // The decoded rows of the current 'B' record, column by column.
+    private boolean[][] blockEmpty;
+    private long[][] blockValues;
+    private int blockRows;
+    private int blockNext;
+
+    public DatalogReader(InputStream stream) throws IOException
+    {
+        this(stream, null);
+    }
+
+    /*
+     * Reads the column header from `header`, then rows from `rows`: another
+     * stream over the same file, already positioned at a row, e.g. at an
+     * index entry (see DatalogIndex). Closes `header` once it is read.
+     */
+    public DatalogReader(InputStream header, InputStream rows) throws IOException
+    {
+        in = new DataInputStream(new BufferedInputStream(header, 65536));
+
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        if (magic[0] != 'D' || magic[1] != 'L' || magic[2] != 'O' || magic[3] != 'G')
+        {
+            throw new IOException("Not a datalog file");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION && version != VERSION_COMPRESSED)
+        {
+            throw new IOException("Unsupported datalog version " + version);
+        }
+
+        int columns = readU16();
+        names = new String[columns];
+        types = new int[columns];
+        decimals = new int[columns];
+        for (int i = 0; i < columns; i++)
+        {
+            types[i] = in.readUnsignedByte();
+            decimals[i] = in.readUnsignedByte();
+            names[i] = readUtf8(readU16());
+        }
+
+        bitmap = new byte[(columns + 7) / 8];
+        empty = new boolean[columns];
+        values = new long[columns];
+        if (version == VERSION_COMPRESSED)
+        {
+            blockEmpty = new boolean[columns][];
+            blockValues = new long[columns][];
+        }
+
+        if (rows != null)
+        {
+            in.close();
+            in = new DataInputStream(new BufferedInputStream(rows, 65536));
+        }
+    }
+
+    public int getColumnCount()
+    {
+        return names.length;
+    }
+
+    public String getColumnName(int column)
+    {
+        return names[column];
+    }
+
+    public int getColumnType(int column)
+    {
+        return types[column];
+    }
+
+    public int getDecimals(int column)
+    {
+        return decimals[column];
+    }
+
+    /*
+     * Advances to the next row. Returns false at the end of the file, or if
+     * the last row was cut short (e.g. the robot lost power mid-write).
+     */
+    public boolean next() throws IOException
+    {
+        if (blockNext < blockRows)
+        {
+            for (int i = 0; i < names.length; i++)
+            {
+                empty[i] = blockEmpty[i][blockNext];
+                values[i] = blockValues[i][blockNext];
+            }
+            blockNext++;
+            return true;
+        }
+
+        while (true)
+        {
+            int tag = in.read();
+            if (tag < 0) return false;
+
+            try
+            {
+                if (tag == RECORD_STRING)
+                {
+                    int id = Integer.reverseBytes(in.readInt());
+                    int length = Integer.reverseBytes(in.readInt());
+                    strings[id] = readUtf8(length);
+                }
+                else if (tag == RECORD_ROW)
+                {
+                    readRow();
+                    return true;
+                }
+                else if (tag == RECORD_BLOCK && blockEmpty != null)
+                {
+                    readBlock();
+                    return next();
+                }
+                else
+                {
+                    throw new IOException("Corrupt datalog: unknown record " + tag);
+                }
+            }
+            catch (EOFException e)
+            {
+                return false;
+            }
+        }
+    }
+
+    public boolean isEmpty(int column)
+    {
+        return empty[column];
+    }
+
+    // The stored value; for DOUBLE columns these are the raw IEEE 754 bits.
+    public long getLong(int column)
+    {
+        return values[column];
+    }
+
+    public double getDouble(int column)
+    {
+        switch (types[column])
+        {
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(values[column]);
+            case TYPE_SECONDS:
+                return values[column] / 1000.0;
+            case TYPE_TEXT:
+                return Double.parseDouble(getText(column));
+            default:
+                return values[column];
+        }
+    }
+
+    public String getText(int column)
+    {
+        return strings[(int) values[column]];
+    }
+
+    // Appends the cell exactly as Datalogger would have written it to CSV.
+    public void appendCell(int column, StringBuilder out)
+    {
+        if (empty[column]) return;
+
+        long val = values[column];
+        switch (types[column])
+        {
+            case TYPE_TEXT:
+                out.append(strings[(int) val]);
+                break;
+            case TYPE_DOUBLE:
+                CsvNumberEncoder.appendFixed(out, Double.longBitsToDouble(val), decimals[column]);
+                break;
+            case TYPE_LONG:
+                CsvNumberEncoder.appendLong(out, val);
+                break;
+            case TYPE_INT:
+                CsvNumberEncoder.appendInt(out, (int) val);
+                break;
+            case TYPE_BOOLEAN:
+                out.append(val != 0);
+                break;
+            case TYPE_SECONDS:
+                CsvNumberEncoder.appendSeconds(out, val, 3);
+                break;
+            default:
+                throw new IllegalStateException("Unknown column type " + types[column]);
+        }
+    }
+
+    // Appends the header line, without a line ending.
+    public void appendHeader(StringBuilder out)
+    {
+        for (int i = 0; i < names.length; i++)
+        {
+            out.append(names[i]);
+            if (i < names.length - 1) out.append(',');
+        }
+    }
+
+    // Appends the current row as a CSV line, without a line ending.
+    public void appendRow(StringBuilder out)
+    {
+        for (int i = 0; i < names.length; i++)
+        {
+            appendCell(i, out);
+            if (i < names.length - 1) out.append(',');
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+    private void readRow() throws IOException
+    {
+        in.readFully(bitmap);
+        for (int i = 0; i < names.length; i++)
+        {
+            empty[i] = (bitmap[i / 8] & (1 << (i % 8))) == 0;
+
+            switch (types[i])
+            {
+                case TYPE_TEXT:
+                case TYPE_INT:
+                    values[i] = Integer.reverseBytes(in.readInt());
+                    break;
+                case TYPE_BOOLEAN:
+                    values[i] = in.readUnsignedByte();
+                    break;
+                default:
+                    values[i] = Long.reverseBytes(in.readLong());
+                    break;
+            }
+        }
+    }
+
+    private void readBlock() throws IOException
+    {
+        int rows = readU16();
+        int length = Integer.reverseBytes(in.readInt());
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        BitReader bits = new BitReader(payload);
+        long[] present = new long[rows];
+        for (int c = 0; c < names.length; c++)
+        {
+            if (blockEmpty[c] == null || blockEmpty[c].length < rows)
+            {
+                blockEmpty[c] = new boolean[rows];
+                blockValues[c] = new long[rows];
+            }
+            boolean[] columnEmpty = blockEmpty[c];
+            long[] columnValues = blockValues[c];
+
+            readRuns(bits, present, rows, 1);
+            int n = 0;
+            for (int r = 0; r < rows; r++)
+            {
+                columnEmpty[r] = present[r] == 0;
+                if (!columnEmpty[r]) n++;
+            }
+
+            long[] packed = new long[n];
+            if (n > 0)
+            {
+                switch (types[c])
+                {
+                    case TYPE_DOUBLE:
+                        readXor(bits, packed, n);
+                        break;
+                    case TYPE_BOOLEAN:
+                        readRuns(bits, packed, n, 1);
+                        break;
+                    case TYPE_TEXT:
+                        readRuns(bits, packed, n, STRING_ID_BITS);
+                        break;
+                    default:
+                        readDeltaOfDelta(bits, packed, n);
+                        break;
+                }
+            }
+
+            for (int r = 0, k = 0; r < rows; r++)
+            {
+                columnValues[r] = columnEmpty[r] ? 0 : packed[k++];
+            }
+        }
+
+        blockRows = rows;
+        blockNext = 0;
+    }
+
+    private static void readXor(BitReader bits, long[] values, int n) throws IOException
+    {
+        long previous = bits.read(64);
+        values[0] = previous;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 1; i < n; i++)
+        {
+            if (bits.read(1) != 0)
+            {
+                if (bits.read(1) != 0)
+                {
+                    leading = (int) bits.read(5);
+                    int length = (int) bits.read(6) + 1;
+                    trailing = 64 - leading - length;
+                }
+                previous ^= bits.read(64 - leading - trailing) << trailing;
+            }
+            values[i] = previous;
+        }
+    }
+
+    private static void readDeltaOfDelta(BitReader bits, long[] values, int n) throws IOException
+    {
+        values[0] = bits.read(64);
+        long delta = 0;
+        for (int i = 1; i < n; i++)
+        {
+            int prefix = 0;
+            while (prefix < 5 && bits.read(1) != 0) prefix++;
+
+            long zigzag;
+            switch (prefix)
+            {
+                case 0: zigzag = 0; break;
+                case 1: zigzag = bits.read(7); break;
+                case 2: zigzag = bits.read(9); break;
+                case 3: zigzag = bits.read(12); break;
+                case 4: zigzag = bits.read(32); break;
+                default: zigzag = bits.read(64); break;
+            }
+            delta += (zigzag >>> 1) ^ -(zigzag & 1);
+            values[i] = values[i - 1] + delta;
+        }
+    }
+
+    private static void readRuns(BitReader bits, long[] values, int n, int valueBits) throws IOException
+    {
+        int r = 0;
+        while (r < n)
+        {
+            long value = bits.read(valueBits);
+            int zeros = 0;
+            while (bits.read(1) == 0) zeros++;
+            int run = (int) ((1L << zeros) | bits.read(zeros));
+            if (r + run > n) throw new IOException("Corrupt datalog: run past the end of a block");
+            for (int end = r + run; r < end; r++)
+            {
+                values[r] = value;
+            }
+        }
+    }
+
+    // Reads values written most significant bit first by Datalogger.BitWriter.
+    private static class BitReader
+    {
+        private final byte[] bytes;
+        private long position;
+
+        BitReader(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        // Reads `count` bits, 0 to 64 of them.
+        long read(int count) throws IOException
+        {
+            long value = 0;
+            while (count > 0)
+            {
+                int index = (int) (position >>> 3);
+                if (index >= bytes.length) throw new IOException("Corrupt datalog: block shorter than its rows");
+                int available = 8 - (int) (position & 7);
+                int take = Math.min(available, count);
+                int chunk = ((bytes[index] & 0xff) >>> (available - take)) & ((1 << take) - 1);
+                value = (value << take) | chunk;
+                position += take;
+                count -= take;
+            }
+            return value;
+        }
+    }
+
+    private int readU16() throws IOException
+    {
+        return Short.reverseBytes(in.readShort()) & 0xffff;
+    }
+
+    private String readUtf8(int length) throws IOException
+    {
+        if (scratch.length < length)
+        {
+            scratch = new byte[length];
+        }
+        in.readFully(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,587 @@
+/*
+Desktop tool that summarizes datalogs too long for a spreadsheet. For each
+file it prints, per numeric column, the count, min, max, mean, standard
+deviation and percentiles; the loop time (time between lines) and its
+jitter from the timestamp column; and gaps where no line was written for
+longer than a threshold.
+
+Each file is read once, as a stream, in memory that does not grow with
+its length. Several files are analysed in parallel on a fork/join pool.
+Reads CSV (.txt, .csv) and binary (.dlog) logs from Datalogger, and the
+.txt files of W_Datalogger_v05; any of them may be gzipped (.gz), as
+Builder.setCompressSegments() leaves them.
+
+Compile and run from the Datalogging folder, with JDK 8 or newer:
+
+  javac -d /tmp/datalog-tools CsvNumberEncoder.java tools/*.java
+  java -cp /tmp/datalog-tools DatalogStats datalog_01.txt
+  java -cp /tmp/datalog-tools DatalogStats --gap 50 --combine match_*.txt.gz
+
+Options:
+  --gap <ms>      report gaps between lines longer than this (default 100)
+  --threads <n>   files analysed at once (default: one per processor)
+  --combine       also print one summary of all the files together, e.g.
+                  the segments of one rotated log
+
+Percentiles are accurate to about 2% of the value. Text columns are only
+counted. Event lines from logEvent() count as lines in the loop time.
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
+
+public class DatalogStats
+{
+    private static final double[] PERCENTILES = {0.50, 0.90, 0.99};
+    private static final int LONGEST_GAPS = 5;
+
+    public static void main(String[] args) throws Exception
+    {
+        double gapMs = 100;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean combine = false;
+        ArrayList<File> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("--gap") && i + 1 < args.length)
+            {
+                gapMs = Double.parseDouble(args[++i]);
+            }
+            else if (args[i].equals("--threads") && i + 1 < args.length)
+            {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("--combine"))
+            {
+                combine = true;
+            }
+            else
+            {
+                files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty())
+        {
+            System.err.println("Usage: java DatalogStats [--gap <ms>] [--threads <n>] [--combine] <log file>...");
+            System.exit(1);
+        }
+
+        Report[] reports = new Report[files.size()];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Report total = pool.invoke(new AnalyseTask(files, reports, 0, files.size(), gapMs * 1000));
+        pool.shutdown();
+
+        for (Report report : reports)
+        {
+            System.out.println(report);
+        }
+        if (combine && reports.length > 1)
+        {
+            if (total != null)
+            {
+                total.name = "All " + reports.length + " files";
+                System.out.println(total);
+            }
+            else
+            {
+                System.out.println("Files have different columns (or could not be read); not combined.");
+            }
+        }
+    }
+
+    /*
+     * Analyses files [from, to) by splitting the range in half until one
+     * file is left. Each file's report goes in reports[]; the returned
+     * report merges them, or is null if their columns differ.
+     */
+    private static class AnalyseTask extends RecursiveTask<Report>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<File> files;
+        private final Report[] reports;
+        private final int from;
+        private final int to;
+        private final double gapUs;
+
+        AnalyseTask(ArrayList<File> files, Report[] reports, int from, int to, double gapUs)
+        {
+            this.files = files;
+            this.reports = reports;
+            this.from = from;
+            this.to = to;
+            this.gapUs = gapUs;
+        }
+
+        @Override
+        protected Report compute()
+        {
+            if (to - from == 1)
+            {
+                try
+                {
+                    reports[from] = analyse(files.get(from), gapUs);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    reports[from] = new Report(files.get(from).getName(), new String[0], gapUs);
+                    reports[from].error = e.toString();
+                    return null;
+                }
+                return reports[from].copy();
+            }
+
+            int middle = (from + to) >>> 1;
+            AnalyseTask left = new AnalyseTask(files, reports, from, middle, gapUs);
+            AnalyseTask right = new AnalyseTask(files, reports, middle, to, gapUs);
+            left.fork();
+            Report b = right.compute();
+            Report a = left.join();
+            return a != null && b != null && a.merge(b) ? a : null;
+        }
+    }
+
+    public static Report analyse(File file, double gapUs) throws IOException
+    {
+        String name = file.getName();
+        InputStream in = new FileInputStream(file);
+        if (name.endsWith(".gz"))
+        {
+            in = new GZIPInputStream(in, 65536);
+            name = name.substring(0, name.length() - 3);
+        }
+
+        if (name.endsWith(".dlog"))
+        {
+            try (DatalogReader reader = new DatalogReader(in))
+            {
+                String[] columns = new String[reader.getColumnCount()];
+                for (int i = 0; i < columns.length; i++)
+                {
+                    columns[i] = reader.getColumnName(i);
+                }
+                Report report = new Report(file.getName(), columns, gapUs);
+                while (reader.next())
+                {
+                    report.startRow();
+                    for (int i = 0; i < columns.length; i++)
+                    {
+                        if (reader.isEmpty(i))
+                        {
+                            report.empty(i);
+                        }
+                        else if (reader.getColumnType(i) == DatalogReader.TYPE_TEXT)
+                        {
+                            String text = reader.getText(i);
+                            report.text(i, text, 0, text.length());
+                        }
+                        else if (reader.getColumnType(i) == DatalogReader.TYPE_BOOLEAN)
+                        {
+                            report.nonNumeric(i);
+                        }
+                        else
+                        {
+                            report.value(i, reader.getDouble(i));
+                        }
+                    }
+                    report.endRow();
+                }
+                return report;
+            }
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 65536))
+        {
+            String header = reader.readLine();
+            if (header == null) throw new IOException("Empty log");
+            String[] columns = header.split(",", -1);
+            Report report = new Report(file.getName(), columns, gapUs);
+
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                report.startRow();
+                int start = 0;
+                for (int i = 0; i < columns.length; i++)
+                {
+                    int comma = i < columns.length - 1 ? line.indexOf(',', start) : -1;
+                    int end = comma < 0 ? line.length() : comma;
+                    if (start >= end)
+                    {
+                        report.empty(i);
+                    }
+                    else
+                    {
+                        report.text(i, line, start, end);
+                    }
+                    start = Math.min(line.length(), end + 1);
+                }
+                report.endRow();
+            }
+            return report;
+        }
+    }
+
+    /*
+     * Everything measured for one file (or several merged), in memory that
+     * only depends on the number of columns.
+     */
+    public static class Report
+    {
+        private String name;
+        private final String[] columns;
+        private final double gapUs;
+        private String error;
+
+        private long rows;
+        private ColumnStats[] stats;
+
+        // Scale of the first column to microseconds, or 0 if it is not a timestamp.
+        private final double timeScale;
+        private double lastTimeUs = Double.NaN;
+        private double rowTimeUs;
+        private final ColumnStats loopMs = new ColumnStats();
+        private long outOfOrder;
+        private long gaps;
+        private double gapTotalUs;
+        private final double[] longestGapUs = new double[LONGEST_GAPS];
+        private final double[] longestGapAtUs = new double[LONGEST_GAPS];
+
+        Report(String name, String[] columns, double gapUs)
+        {
+            this.name = name;
+            this.columns = columns;
+            this.gapUs = gapUs;
+            stats = new ColumnStats[columns.length];
+            for (int i = 0; i < columns.length; i++)
+            {
+                stats[i] = new ColumnStats();
+            }
+
+            String first = columns.length > 0 ? columns[0] : "";
+            if (first.equals("Timestamp") || first.equals("Time"))
+            {
+                timeScale = 1e6;
+            }
+            else if (first.equals("Time us") || first.equals("Capture us"))
+            {
+                timeScale = 1;
+            }
+            else
+            {
+                timeScale = 0;
+            }
+        }
+
+        void startRow()
+        {
+            rows++;
+            rowTimeUs = Double.NaN;
+        }
+
+        void empty(int column)
+        {
+            stats[column].empty++;
+        }
+
+        void nonNumeric(int column)
+        {
+            stats[column].text++;
+        }
+
+        void value(int column, double value)
+        {
+            if (Double.isNaN(value) || Double.isInfinite(value))
+            {
+                stats[column].text++;
+                return;
+            }
+            stats[column].add(value);
+            if (column == 0 && timeScale > 0) rowTimeUs = value * timeScale;
+        }
+
+        // A cell as text: a number unless it doesn't parse as one.
+        void text(int column, String line, int start, int end)
+        {
+            char c = start < end ? line.charAt(start) : ' ';
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.')
+            {
+                try
+                {
+                    value(column, Double.parseDouble(line.substring(start, end)));
+                    return;
+                }
+                catch (NumberFormatException e)
+                {
+                    // Text that starts like a number, e.g. "1st"
+                }
+            }
+            stats[column].text++;
+        }
+
+        void endRow()
+        {
+            if (Double.isNaN(rowTimeUs)) return;
+
+            if (!Double.isNaN(lastTimeUs))
+            {
+                double delta = rowTimeUs - lastTimeUs;
+                if (delta < 0)
+                {
+                    outOfOrder++;
+                    return; // keep measuring from the latest time
+                }
+                loopMs.add(delta / 1000);
+                if (delta > gapUs)
+                {
+                    gaps++;
+                    gapTotalUs += delta;
+                    recordGap(delta, lastTimeUs);
+                }
+            }
+            lastTimeUs = rowTimeUs;
+        }
+
+        private void recordGap(double lengthUs, double atUs)
+        {
+            int i = LONGEST_GAPS - 1;
+            if (lengthUs <= longestGapUs[i]) return;
+            while (i > 0 && lengthUs > longestGapUs[i - 1])
+            {
+                longestGapUs[i] = longestGapUs[i - 1];
+                longestGapAtUs[i] = longestGapAtUs[i - 1];
+                i--;
+            }
+            longestGapUs[i] = lengthUs;
+            longestGapAtUs[i] = atUs;
+        }
+
+        Report copy()
+        {
+            Report copy = new Report(name, columns, gapUs);
+            copy.merge(this);
+            return copy;
+        }
+
+        /*
+         * Adds another file's measurements to this one, if it has the same
+         * columns. The time between the two files is not counted as a loop.
+         */
+        boolean merge(Report other)
+        {
+            if (error != null || other.error != null || !Arrays.equals(columns, other.columns)) return false;
+
+            rows += other.rows;
+            for (int i = 0; i < stats.length; i++)
+            {
+                stats[i].merge(other.stats[i]);
+            }
+            loopMs.merge(other.loopMs);
+            outOfOrder += other.outOfOrder;
+            gaps += other.gaps;
+            gapTotalUs += other.gapTotalUs;
+            for (int i = 0; i < LONGEST_GAPS && other.longestGapUs[i] > 0; i++)
+            {
+                recordGap(other.longestGapUs[i], other.longestGapAtUs[i]);
+            }
+            return true;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder out = new StringBuilder();
+            if (error != null)
+            {
+                return out.append(name).append(": ").append(error).append('\n').toString();
+            }
+
+            out.append(name).append(": ").append(rows).append(" lines, ").append(columns.length).append(" columns\n");
+            out.append(String.format("  %-20s %10s %8s %8s %12s %12s %12s %12s", "Column", "count", "empty", "text", "min", "max", "mean", "stddev"));
+            for (double p : PERCENTILES)
+            {
+                out.append(String.format(" %12s", "p" + Math.round(p * 100)));
+            }
+            out.append('\n');
+            for (int i = 0; i < columns.length; i++)
+            {
+                appendStats(out, columns[i], stats[i]);
+            }
+
+            if (timeScale > 0)
+            {
+                out.append('\n');
+                appendStats(out, "Loop time (ms)", loopMs);
+                out.append(String.format("  Gaps over %.0f ms: %d, %.3f s in total", gapUs / 1000, gaps, gapTotalUs / 1e6));
+                for (int i = 0; i < LONGEST_GAPS && longestGapUs[i] > 0; i++)
+                {
+                    out.append(i == 0 ? "; longest " : ", ");
+                    out.append(String.format("%.3f s at %.3f s", longestGapUs[i] / 1e6, longestGapAtUs[i] / 1e6));
+                }
+                out.append('\n');
+                if (outOfOrder > 0)
+                {
+                    out.append("  Lines earlier than the line before them: ").append(outOfOrder).append('\n');
+                }
+            }
+            return out.toString();
+        }
+
+        private static void appendStats(StringBuilder out, String name, ColumnStats stats)
+        {
+            out.append(String.format("  %-20s %10d %8d %8d", name, stats.count, stats.empty, stats.text));
+            if (stats.count == 0)
+            {
+                out.append('\n');
+                return;
+            }
+            out.append(String.format(" %12.6g %12.6g %12.6g %12.6g", stats.min, stats.max, stats.mean, stats.stddev()));
+            for (double p : PERCENTILES)
+            {
+                out.append(String.format(" %12.6g", stats.percentile(p)));
+            }
+            out.append('\n');
+        }
+    }
+
+    /*
+     * Running statistics of one column. Mean and variance use Welford's
+     * method, which stays accurate over millions of values; percentiles come
+     * from a ValueHistogram, created on the first value.
+     */
+    private static class ColumnStats
+    {
+        long count;
+        long empty;
+        long text;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double mean;
+        double m2;
+        ValueHistogram histogram;
+
+        void add(double value)
+        {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+            if (value < min) min = value;
+            if (value > max) max = value;
+            if (histogram == null) histogram = new ValueHistogram();
+            histogram.add(value);
+        }
+
+        double stddev()
+        {
+            return count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+        }
+
+        double percentile(double fraction)
+        {
+            return Math.max(min, Math.min(max, histogram.percentile(fraction, count)));
+        }
+
+        void merge(ColumnStats other)
+        {
+            empty += other.empty;
+            text += other.text;
+            if (other.count == 0) return;
+
+            long total = count + other.count;
+            double delta = other.mean - mean;
+            mean += delta * other.count / total;
+            m2 += other.m2 + delta * delta * count * other.count / total;
+            count = total;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            if (histogram == null) histogram = new ValueHistogram();
+            histogram.merge(other.histogram);
+        }
+    }
+
+    /*
+     * Log-linear histogram of any double, like Datalogger's LatencyHistogram:
+     * each power of two from 2^-20 to 2^40 is split into 32 buckets, for
+     * negative and positive values, so a percentile is within about 2% of
+     * the true value. Smaller magnitudes count as 0, larger ones fall in
+     * the outermost buckets. 30 KB per column, whatever the file size.
+     */
+    private static class ValueHistogram
+    {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int MIN_EXPONENT = -20;
+        private static final int MAX_EXPONENT = 40;
+        private static final int HALF = (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS;
+
+        // Negative values from the most negative up, then 0, then positive values.
+        private final long[] counts = new long[2 * HALF + 1];
+
+        void add(double value)
+        {
+            counts[index(value)]++;
+        }
+
+        void merge(ValueHistogram other)
+        {
+            for (int i = 0; i < counts.length; i++)
+            {
+                counts[i] += other.counts[i];
+            }
+        }
+
+        private static int index(double value)
+        {
+            double magnitude = Math.abs(value);
+            if (magnitude < Math.scalb(1.0, MIN_EXPONENT)) return HALF;
+
+            int bucket;
+            int exponent = Math.getExponent(magnitude);
+            if (exponent >= MAX_EXPONENT)
+            {
+                bucket = HALF - 1;
+            }
+            else
+            {
+                int sub = (int) (Double.doubleToRawLongBits(magnitude) >>> (52 - SUB_BITS)) & (SUB_BUCKETS - 1);
+                bucket = (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+            }
+            return value > 0 ? HALF + 1 + bucket : HALF - 1 - bucket;
+        }
+
+        // The middle of a bucket.
+        private static double value(int index)
+        {
+            if (index == HALF) return 0;
+
+            int bucket = index > HALF ? index - HALF - 1 : HALF - 1 - index;
+            int exponent = bucket / SUB_BUCKETS + MIN_EXPONENT;
+            double middle = Math.scalb(1.0 + (bucket % SUB_BUCKETS + 0.5) / SUB_BUCKETS, exponent);
+            return index > HALF ? middle : -middle;
+        }
+
+        double percentile(double fraction, long count)
+        {
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank) return value(i);
+            }
+            return value(counts.length - 1);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+Desktop client for a Datalogger live stream (Builder.setLiveStream()).
+It connects to the robot, then writes the CSV lines to a file or the
+console as they arrive, and can plot chosen columns in a window.
+
+Compile and run from the Datalogging folder, with JDK 8 or newer:
+
+  javac -d /tmp/datalog-tools CsvNumberEncoder.java tools/*.java
+  java -cp /tmp/datalog-tools DatalogStreamClient 192.168.43.1 5800 tcp
+  java -cp /tmp/datalog-tools DatalogStreamClient 192.168.43.1 5800 udp live.csv Yaw,Pitch
+
+Arguments: host, port, tcp or udp (as set in the OpMode), then optionally
+an output file ("-" for the console, the default) and a comma-separated
+list of columns to plot against the first column. Stop with Ctrl+C or by
+closing the plot window.
+
+With UDP, lines lost on the network are simply missing from the output.
+*/
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+
+public class DatalogStreamClient
+{
+    private static final int UDP_KEEPALIVE_MS = 1000;
+
+    private final Writer out;
+    private final String[] plotColumns;
+    private String header;
+    private Plot plot;
+
+    public DatalogStreamClient(Writer out, String[] plotColumns)
+    {
+        this.out = out;
+        this.plotColumns = plotColumns;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 3 || args.length > 5)
+        {
+            System.err.println("Usage: java DatalogStreamClient <host> <port> <tcp|udp> [output.csv|-] [Column1,Column2,...]");
+            System.exit(1);
+        }
+
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        boolean udp = args[2].equalsIgnoreCase("udp");
+        String output = args.length > 3 ? args[3] : "-";
+        String[] plotColumns = args.length > 4 ? args[4].split(",") : new String[0];
+
+        Writer out = output.equals("-")
+                ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+                : new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 65536);
+
+        DatalogStreamClient client = new DatalogStreamClient(out, plotColumns);
+        try
+        {
+            if (udp)
+            {
+                client.receiveUdp(host, port);
+            }
+            else
+            {
+                client.receiveTcp(host, port);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    public void receiveTcp(String host, int port) throws IOException
+    {
+        try (Socket socket = new Socket(host, port);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                accept(line);
+            }
+        }
+    }
+
+    // Runs until the process is stopped; the robot can't tell a UDP client it has finished.
+    public void receiveUdp(String host, int port) throws IOException
+    {
+        InetSocketAddress robot = new InetSocketAddress(host, port);
+        byte[] hello = "hello".getBytes(StandardCharsets.US_ASCII);
+        byte[] buffer = new byte[65536];
+
+        try (DatagramSocket socket = new DatagramSocket())
+        {
+            socket.setSoTimeout(UDP_KEEPALIVE_MS);
+            long lastHello = 0;
+            while (true)
+            {
+                if (System.currentTimeMillis() - lastHello >= UDP_KEEPALIVE_MS)
+                {
+                    socket.send(new DatagramPacket(hello, hello.length, robot));
+                    lastHello = System.currentTimeMillis();
+                }
+
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try
+                {
+                    socket.receive(packet);
+                }
+                catch (SocketTimeoutException e)
+                {
+                    continue;
+                }
+
+                String line = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+                accept(line.endsWith("\n") ? line.substring(0, line.length() - 1) : line);
+            }
+        }
+    }
+
+    // Handles one line of the stream; the first is the header.
+    public void accept(String line) throws IOException
+    {
+        if (header == null)
+        {
+            header = line;
+            if (plotColumns.length > 0) openPlot(line.split(",", -1));
+        }
+        else if (line.equals(header))
+        {
+            return; // a repeated UDP header
+        }
+        else if (plot != null)
+        {
+            plot.add(line.split(",", -1));
+        }
+
+        out.write(line);
+        out.write('\n');
+        out.flush();
+    }
+
+    private void openPlot(String[] columns)
+    {
+        int[] indexes = new int[plotColumns.length];
+        for (int i = 0; i < plotColumns.length; i++)
+        {
+            indexes[i] = Arrays.asList(columns).indexOf(plotColumns[i].trim());
+            if (indexes[i] < 0) throw new IllegalArgumentException("No column named " + plotColumns[i]);
+        }
+
+        plot = new Plot(plotColumns, indexes);
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                JFrame frame = new JFrame("Datalog " + columns[0] + " vs " + String.join(", ", plotColumns));
+                frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+                frame.add(plot);
+                frame.pack();
+                frame.setVisible(true);
+            }
+        });
+    }
+
+    /*
+     * Rolling line chart of the most recent points of each plotted column
+     * against the first column (normally the timestamp). Empty or
+     * non-numeric cells are skipped.
+     */
+    private static class Plot extends JPanel
+    {
+        private static final long serialVersionUID = 1L;
+
+        private static final int POINTS = 2000;
+        private static final Color[] COLORS = {
+                Color.BLUE, Color.RED, new Color(0, 140, 0), Color.MAGENTA, Color.ORANGE, Color.CYAN
+        };
+
+        private final String[] names;
+        private final int[] indexes;
+        private final double[] x = new double[POINTS];
+        private final double[][] y;
+        private int count;
+        private int next;
+
+        Plot(String[] names, int[] indexes)
+        {
+            this.names = names;
+            this.indexes = indexes;
+            y = new double[indexes.length][POINTS];
+            setPreferredSize(new Dimension(900, 450));
+            setBackground(Color.WHITE);
+        }
+
+        void add(String[] cells)
+        {
+            double time = parse(cells, 0);
+            if (Double.isNaN(time)) return;
+
+            synchronized (this)
+            {
+                x[next] = time;
+                for (int s = 0; s < indexes.length; s++)
+                {
+                    y[s][next] = parse(cells, indexes[s]);
+                }
+                next = (next + 1) % POINTS;
+                count = Math.min(count + 1, POINTS);
+            }
+            repaint();
+        }
+
+        private static double parse(String[] cells, int index)
+        {
+            if (index >= cells.length || cells[index].isEmpty()) return Double.NaN;
+            try
+            {
+                return Double.parseDouble(cells[index]);
+            }
+            catch (NumberFormatException e)
+            {
+                return Double.NaN;
+            }
+        }
+
+        @Override
+        protected synchronized void paintComponent(Graphics graphics)
+        {
+            super.paintComponent(graphics);
+            if (count < 2) return;
+
+            Graphics2D g = (Graphics2D) graphics;
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            int first = (next - count + POINTS) % POINTS;
+            double xMin = x[first];
+            double xMax = x[(next - 1 + POINTS) % POINTS];
+            double yMin = Double.POSITIVE_INFINITY;
+            double yMax = Double.NEGATIVE_INFINITY;
+            for (double[] series : y)
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    double v = series[(first + i) % POINTS];
+                    if (Double.isNaN(v)) continue;
+                    yMin = Math.min(yMin, v);
+                    yMax = Math.max(yMax, v);
+                }
+            }
+            if (yMin > yMax) return;
+            if (xMax <= xMin) xMax = xMin + 1;
+            if (yMax <= yMin) yMax = yMin + 1;
+
+            int margin = 40;
+            int width = getWidth() - 2 * margin;
+            int height = getHeight() - 2 * margin;
+
+            g.setColor(Color.GRAY);
+            g.drawRect(margin, margin, width, height);
+            g.drawString(String.format("%.3f", yMax), 2, margin);
+            g.drawString(String.format("%.3f", yMin), 2, margin + height);
+            g.drawString(String.format("%.3f", xMin), margin, margin + height + 15);
+            g.drawString(String.format("%.3f", xMax), margin + width - 50, margin + height + 15);
+
+            g.setStroke(new BasicStroke(1.5f));
+            for (int s = 0; s < y.length; s++)
+            {
+                g.setColor(COLORS[s % COLORS.length]);
+                g.drawString(names[s], margin + 10 + 100 * s, margin - 10);
+
+                int lastX = -1;
+                int lastY = -1;
+                for (int i = 0; i < count; i++)
+                {
+                    int slot = (first + i) % POINTS;
+                    double v = y[s][slot];
+                    if (Double.isNaN(v)) continue;
+                    int px = margin + (int) ((x[slot] - xMin) / (xMax - xMin) * width);
+                    int py = margin + height - (int) ((v - yMin) / (yMax - yMin) * height);
+                    if (lastX >= 0) g.drawLine(lastX, lastY, px, py);
+                    lastX = px;
+                    lastY = py;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+Desktop tool that converts a binary .dlog file, written by Datalogger with
+Format.BINARY or Format.COMPRESSED, into the same CSV text the Datalogger
+would have written in its default CSV format. The result opens in Excel or
+Google Sheets.
+
+Compile and run from the Datalogging folder, with JDK 8 or newer:
+
+  javac -d /tmp/datalog-tools CsvNumberEncoder.java tools/*.java
+  java -cp /tmp/datalog-tools DatalogToCsv datalog_01.dlog [datalog_01.csv]
+
+Without an output name the CSV is written next to the input file.
+*/
+
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+public class DatalogToCsv
+{
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1 || args.length > 2)
+        {
+            System.err.println("Usage: java DatalogToCsv <input.dlog> [output.csv]");
+            System.exit(1);
+        }
+
+        String input = args[0];
+        String output = args.length > 1 ? args[1] : input.replaceFirst("\\.dlog$", "") + ".csv";
+
+        long rows = convert(input, output);
+        System.out.println("Wrote " + rows + " rows to " + output);
+    }
+
+    public static long convert(String input, String output) throws IOException
+    {
+        long rows = 0;
+
+        try (DatalogReader reader = new DatalogReader(new FileInputStream(input));
+             Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 65536))
+        {
+            StringBuilder line = new StringBuilder(256);
+
+            reader.appendHeader(line);
+            writeLine(writer, line);
+
+            while (reader.next())
+            {
+                line.setLength(0);
+                reader.appendRow(line);
+                writeLine(writer, line);
+                rows++;
+            }
+        }
+
+        return rows;
+    }
+
+    // The robot writes '\n' line endings, so do the same on every desktop OS.
+    private static void writeLine(Writer writer, StringBuilder line) throws IOException
+    {
+        writer.append(line);
+        writer.write('\n');
+    }
+}